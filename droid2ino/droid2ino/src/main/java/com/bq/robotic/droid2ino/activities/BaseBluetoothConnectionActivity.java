@@ -32,11 +32,17 @@ import android.widget.Toast;
 
 import com.bq.robotic.droid2ino.communication.BluetoothManager;
 import com.bq.robotic.droid2ino.communication.ble.BleProfile;
+import com.bq.robotic.droid2ino.communication.framing.FrameCodec;
 import com.bq.robotic.droid2ino.views.BtDevicesListDialog;
 import com.bq.robotic.droid2ino.views.DevicesListDialogStyle;
 import com.bq.robotic.droid2ino.R;
 import com.bq.robotic.droid2ino.communication.BtCommunicationListener;
 import com.bq.robotic.droid2ino.communication.BtCommunicationListenerAdapter;
+import com.bq.robotic.droid2ino.communication.BtFrameListener;
+import com.bq.robotic.droid2ino.communication.ReceiveQueuePolicy;
+import com.bq.robotic.droid2ino.communication.ReceivedMessagesDispatcher;
+import com.bq.robotic.droid2ino.communication.SendHandle;
+import com.bq.robotic.droid2ino.communication.SendPriority;
 import com.bq.robotic.droid2ino.utils.Droid2InoConstants;
 
 import org.jetbrains.annotations.NotNull;
@@ -351,6 +357,67 @@ public abstract class BaseBluetoothConnectionActivity extends AppCompatActivity
       bluetoothManager.configureBleConnectionType(bleProfile);
    }
 
+   /**
+    * Configure the {@link FrameCodec} used to delimit the messages in the future connections of the
+    * given type. Pass null to use the default one of that connection type. The firmware of the
+    * connected device must use the same framing.
+    *
+    * @param connectionType   The connection type to configure
+    * @param frameCodec       The {@link FrameCodec} to use, or null for the default one
+    */
+   protected final void configureFrameCodec(BluetoothManager.BtConnectionType connectionType,
+                                            FrameCodec frameCodec) {
+      bluetoothManager.configureFrameCodec(connectionType, frameCodec);
+   }
+
+   /**
+    * Enable the batching of the received messages. The messages received during the batch window
+    * are delivered together, calling to {@link BaseBluetoothConnectionActivity#onMessageReceived(String)}
+    * for each one of them in a single turn of the main looper. Pass
+    * {@link com.bq.robotic.droid2ino.communication.ReceivedMessagesDispatcher#NO_BATCHING} to
+    * disable it.
+    *
+    * @param batchWindowMs   Time in milliseconds during which the received messages are collected
+    */
+   protected final void setReceiveBatchWindow(long batchWindowMs) {
+      bluetoothManager.setReceiveBatchWindowMs(batchWindowMs);
+   }
+
+   /**
+    * Set a {@link BtFrameListener} for receiving the messages as raw bytes. While it is set,
+    * {@link BaseBluetoothConnectionActivity#onMessageReceived(String)} isn't called. Pass null for
+    * receiving the messages as Strings again.
+    *
+    * @param frameListener   The {@link BtFrameListener} that will receive the messages, or null
+    */
+   protected final void setBtFrameListener(BtFrameListener frameListener) {
+      bluetoothManager.setBtFrameListener(frameListener);
+   }
+
+   /**
+    * Set the max number of received messages pending to be delivered and what to do when that
+    * number is reached. It is applied from the next connection on.
+    *
+    * @param capacity       Max number of received messages pending to be delivered
+    * @param policy         The {@link ReceiveQueuePolicy} to apply when the queue is full
+    * @param keyExtractor   Key of the received messages, required for
+    *                       {@link ReceiveQueuePolicy#LATEST_PER_KEY}, or null
+    */
+   protected final void configureReceiveQueue(int capacity, ReceiveQueuePolicy policy,
+                                              ReceivedMessagesDispatcher.MessageKeyExtractor keyExtractor) {
+      bluetoothManager.configureReceiveQueue(capacity, policy, keyExtractor);
+   }
+
+   /**
+    * Subscribe only to the given events, so the connection doesn't produce the ones whose
+    * callbacks this activity doesn't override. The errors are always delivered.
+    *
+    * @param eventMask A combination of the {@link Droid2InoConstants#EVENT_ALL} flags
+    */
+   protected final void setEventMask(int eventMask) {
+      bluetoothManager.setEventMask(eventMask);
+   }
+
    /**
     * Select {@link BluetoothManager.BtConnectionType#BT_SOCKET} as the connection type to use.
     * A {@link BleProfile} can be passed to be used with this connection. The {@link BleProfile}
@@ -396,18 +463,34 @@ public abstract class BaseBluetoothConnectionActivity extends AppCompatActivity
     * Sends a message to the connected device if any.
     *
     * @param message A string of text to send.
+    * @return The {@link SendHandle} completed once the message was sent
     */
-   protected final void sendMessage(final String message) {
-      bluetoothManager.sendMessage(message);
+   protected final SendHandle sendMessage(final String message) {
+      return bluetoothManager.sendMessage(message);
    }
 
    /**
     * Sends a message to the connected device if any.
     *
     * @param messageBuffer A string of text to send.
+    * @return The {@link SendHandle} completed once the message was sent
+    */
+   protected final SendHandle sendMessage(byte[] messageBuffer) {
+      return bluetoothManager.sendMessage(messageBuffer);
+   }
+
+   /**
+    * Sends a message to the connected device if any, with the given priority. The pending messages
+    * of a higher priority are sent first. If the coalesce key isn't null, the message replaces the
+    * pending, not sent yet, message of the same priority with the same key.
+    *
+    * @param message       A string of text to send.
+    * @param priority      The {@link SendPriority} of the message
+    * @param coalesceKey   Key of the value sent in the message, or null
+    * @return The {@link SendHandle} completed once the message was sent
     */
-   protected final void sendMessage(byte[] messageBuffer) {
-      bluetoothManager.sendMessage(messageBuffer);
+   protected final SendHandle sendMessage(String message, SendPriority priority, Object coalesceKey) {
+      return bluetoothManager.sendMessage(message, priority, coalesceKey);
    }
 
    /**
@@ -40,8 +40,12 @@ import android.widget.Toast
 import com.bq.robotic.droid2ino.R
 import com.bq.robotic.droid2ino.communication.ble.BleController
 import com.bq.robotic.droid2ino.communication.ble.BleProfile
+import com.bq.robotic.droid2ino.communication.ble.GattOperation
 import com.bq.robotic.droid2ino.communication.btsocket.BtSocketController
+import com.bq.robotic.droid2ino.communication.btsocket.LinkPacer
+import com.bq.robotic.droid2ino.communication.framing.FrameCodec
 import com.bq.robotic.droid2ino.utils.ConnectionErrorFeedback
+import java.io.IOException
 
 class BluetoothManager(ctx: Context) {
     private val LOG_TAG = this.javaClass.simpleName
@@ -67,6 +71,42 @@ class BluetoothManager(ctx: Context) {
      */
     var btCommunicationListener: BtCommunicationListener? = null
 
+    /**
+     * Opt-in listener for receiving the messages as raw bytes. When it is set, the received messages
+     * are delivered only to it, from the thread that receives them, and
+     * [BtCommunicationListener.onMessageReceived] isn't called. See [BtFrameListener].
+     */
+    var btFrameListener: BtFrameListener? = null
+        set(value) {
+            field = value
+            currentBtController?.setFrameListener(value)
+        }
+
+    /**
+     * Time in milliseconds during which the received messages are collected before being delivered
+     * together to [BtBatchListener.onMessagesReceived], if the listener implements it. 0 delivers together the messages
+     * received before the next turn of the main looper. By default the batching is disabled
+     * ([ReceivedMessagesDispatcher.NO_BATCHING]) and each message is delivered to
+     * [BtCommunicationListener.onMessageReceived] as soon as it is received.
+     */
+    var receiveBatchWindowMs = ReceivedMessagesDispatcher.NO_BATCHING
+        set(value) {
+            field = value
+            currentBtController?.setReceiveBatchWindow(value)
+        }
+
+    /**
+     * Events [btCommunicationListener] is subscribed to, a combination of the
+     * [Droid2InoConstants.EVENT_ALL] flags. The connections don't even produce the events without
+     * subscription, so there is no cost for the callbacks that aren't overridden. The errors are
+     * always delivered. By default it is subscribed to all of them.
+     */
+    var eventMask = Droid2InoConstants.EVENT_ALL
+        set(value) {
+            field = value
+            currentBtController?.setEventMask(value)
+        }
+
     /**
      * The user accepted that the app can use the Bluetooth and enable/disable it when needed.
      */
@@ -84,6 +124,14 @@ class BluetoothManager(ctx: Context) {
     var isBtSocketDuplexRequested = BtConnectionType.BT_SOCKET == BtConnectionType.DEFAULT
         private set // The setter is private and has the default implementation
 
+    // Write coalescing of the BT socket connections, see [configureBtSocketWriteCoalescing]
+    private var btSocketCoalescingMaxDelayMs = BtSocketController.NO_WRITE_COALESCING
+    private var btSocketCoalescingFlushThreshold = BtSocketController.DEFAULT_COALESCING_FLUSH_THRESHOLD
+    // Pacing of the writes of the BT socket connections, see [configureBtSocketPacing]
+    private var btSocketLinkPacer: LinkPacer? = null
+    // Connection priority of the BLE connections set by the application, see [pinBleConnectionPriority]
+    private var blePinnedConnectionPriority: Int? = null
+
     private val context = ctx.applicationContext
     private var currentBtController: BtControllerInterface? = null
 
@@ -99,6 +147,17 @@ class BluetoothManager(ctx: Context) {
      */
     private var customBleProfileRequested: BleProfile? = null
 
+    /**
+     * [FrameCodec]s requested for each connection type. The connection types without a requested
+     * codec will use their default one.
+     */
+    private val frameCodecsRequested = mutableMapOf<BtConnectionType, FrameCodec>()
+
+    // Configuration of the queue of the received messages, see [configureReceiveQueue]
+    private var receiveQueueCapacity = ReceivedMessagesDispatcher.DEFAULT_QUEUE_CAPACITY
+    private var receiveQueuePolicy = ReceivedMessagesDispatcher.DEFAULT_QUEUE_POLICY
+    private var receiveKeyExtractor: ReceivedMessagesDispatcher.MessageKeyExtractor? = null
+
     /**
      * Return true if the bluetooth is currently enabled and ready for use.
      */
@@ -145,11 +204,22 @@ class BluetoothManager(ctx: Context) {
 
             if (btConnectionType == BtConnectionType.BT_SOCKET && it is BtSocketController) {
                 it.setDuplexConnection(isBtSocketDuplexRequested)
+                it.setWriteCoalescing(btSocketCoalescingMaxDelayMs, btSocketCoalescingFlushThreshold)
+                it.setLinkPacer(btSocketLinkPacer)
 
             } else if (btConnectionType == BtConnectionType.BLE && it is BleController
                        && customBleProfileRequested != null) {
                 it.bleProfile = customBleProfileRequested!!
             }
+
+            if (it is BleController && blePinnedConnectionPriority != null)
+                it.setPinnedConnectionPriority(blePinnedConnectionPriority)
+
+            frameCodecsRequested[btConnectionType]?.let { frameCodec -> it.setFrameCodec(frameCodec) }
+            it.setFrameListener(btFrameListener)
+            it.setReceiveBatchWindow(receiveBatchWindowMs)
+            it.setEventMask(eventMask)
+            it.setReceiveQueue(receiveQueueCapacity, receiveQueuePolicy, receiveKeyExtractor)
         }
     }
 
@@ -182,18 +252,53 @@ class BluetoothManager(ctx: Context) {
     }
 
     /**
-     * Sends a message.
+     * Sends a message. It is queued and the returned [SendHandle] is completed once it was sent, or
+     * failed with the cause, so several messages can be pipelined.
+     *
+     * @param message A string of text to send.
+     */
+    fun sendMessage(message: String) =
+        currentBtController?.sendMessage(message) ?: notConnectedHandle(message)
+
+    /**
+     * Sends a message. See [sendMessage] with a String message.
+     *
+     * @param messageBuffer A string of text to send.
+     */
+    fun sendMessage(messageBuffer: ByteArray) =
+        currentBtController?.sendMessage(messageBuffer) ?: notConnectedHandle(messageBuffer)
+
+    /**
+     * Sends a message with the given [priority]. The pending messages of a higher priority are
+     * sent first, so urgent commands don't wait behind bulk data. If [coalesceKey] isn't null, the
+     * message replaces the pending, not sent yet, message of the same priority with the same key,
+     * so only the latest value of a control is sent.
      *
      * @param message A string of text to send.
      */
-    fun sendMessage(message: String) = currentBtController?.sendMessage(message)
+    @JvmOverloads
+    fun sendMessage(message: String, priority: SendPriority, coalesceKey: Any? = null) =
+        currentBtController?.sendMessage(message, priority, coalesceKey) ?: notConnectedHandle(message)
 
     /**
-     * Sends a message.
+     * Sends a message with the given [priority]. See [sendMessage] with a String message.
      *
      * @param messageBuffer A string of text to send.
      */
-    fun sendMessage(messageBuffer: ByteArray) = currentBtController?.sendMessage(messageBuffer)
+    @JvmOverloads
+    fun sendMessage(messageBuffer: ByteArray, priority: SendPriority, coalesceKey: Any? = null) =
+        currentBtController?.sendMessage(messageBuffer, priority, coalesceKey) ?: notConnectedHandle(messageBuffer)
+
+    /**
+     * Sends the first [length] bytes of [messageBuffer] with the given [priority]. The array isn't
+     * copied, so it mustn't be modified until the returned handle is done. Unless all of the array
+     * is sent, the handle and the sent event have no message, as the array may be reused later.
+     */
+    @JvmOverloads
+    fun sendMessage(messageBuffer: ByteArray, length: Int, priority: SendPriority, coalesceKey: Any? = null) =
+        currentBtController?.sendMessage(messageBuffer, length, priority, coalesceKey) ?: notConnectedHandle(if (length == messageBuffer.size) messageBuffer else null)
+
+    private fun notConnectedHandle(message: Any?) = SendHandle.failed(message, IOException("Not connected"))
 
     private fun selectBtConnectionType(connectionType: BluetoothManager.BtConnectionType) {
         if (connectionType == btConnectionType) return
@@ -253,6 +358,37 @@ class BluetoothManager(ctx: Context) {
         }
     }
 
+    /**
+     * Coalesce the messages sent in quick succession through a BT socket connection in a single
+     * write. See [BtSocketController.setWriteCoalescing]. Pass
+     * [BtSocketController.NO_WRITE_COALESCING] as [maxDelayMs] for writing each message as soon as
+     * it is sent, which is the default.
+     */
+    @JvmOverloads
+    fun configureBtSocketWriteCoalescing(maxDelayMs: Long,
+                                         flushThresholdBytes: Int = BtSocketController.DEFAULT_COALESCING_FLUSH_THRESHOLD) {
+        btSocketCoalescingMaxDelayMs = maxDelayMs
+        btSocketCoalescingFlushThreshold = flushThresholdBytes
+        (currentBtController as? BtSocketController)?.setWriteCoalescing(maxDelayMs, flushThresholdBytes)
+    }
+
+    /**
+     * Pace the writes of the BT socket connections with the given [LinkPacer], so the phone never
+     * sends faster than the board can drain its receive buffer. Pass null for writing as fast as
+     * possible, which is the default. It is applied from the next connection on.
+     */
+    fun configureBtSocketPacing(linkPacer: LinkPacer?) {
+        btSocketLinkPacer = linkPacer
+        (currentBtController as? BtSocketController)?.setLinkPacer(linkPacer)
+    }
+
+    /**
+     * Write right away the messages waiting to be coalesced in the BT socket connection, if any.
+     */
+    fun flushSentMessages() {
+        (currentBtController as? BtSocketController)?.flush()
+    }
+
     /**
      * Configure a future BLE connection type for using a different [BleProfile] or the default one
      * if [bleProfile] param is set to null.
@@ -269,11 +405,103 @@ class BluetoothManager(ctx: Context) {
         }
     }
 
+    /**
+     * Configure the [FrameCodec] used to delimit the messages in the future connections of the
+     * [connectionType] type, or its default one if [frameCodec] is null. By default the BT socket
+     * connections use [com.bq.robotic.droid2ino.communication.framing.DelimiterFrameCodec.DEFAULT]
+     * and the BLE connections use [com.bq.robotic.droid2ino.communication.framing.JsonFrameCodec].
+     * The firmware of the connected device must use the same framing.
+     */
+    fun configureFrameCodec(connectionType: BtConnectionType, frameCodec: FrameCodec?) {
+        if (frameCodec == null) {
+            frameCodecsRequested.remove(connectionType)
+        } else {
+            frameCodecsRequested[connectionType] = frameCodec
+        }
+    }
+
+    /**
+     * Set the max number of received messages pending to be delivered to the
+     * [btCommunicationListener] and what to do when that number is reached. By default up to
+     * [ReceivedMessagesDispatcher.DEFAULT_QUEUE_CAPACITY] messages are kept and the oldest one is
+     * discarded when there are more. The [keyExtractor] is required for [ReceiveQueuePolicy.LATEST_PER_KEY].
+     * BLE connections never use [ReceiveQueuePolicy.BLOCK_PRODUCER], as the messages are received in
+     * the thread of the GATT callbacks, they discard the oldest message instead.
+     *
+     * It is applied from the next connection on.
+     */
+    @JvmOverloads
+    fun configureReceiveQueue(capacity: Int, policy: ReceiveQueuePolicy,
+                              keyExtractor: ReceivedMessagesDispatcher.MessageKeyExtractor? = null) {
+        receiveQueueCapacity = capacity
+        receiveQueuePolicy = policy
+        receiveKeyExtractor = keyExtractor
+    }
+
+    /**
+     * Number of received messages discarded by the policy of the receive queue in the current
+     * connection. See [configureReceiveQueue].
+     */
+    val droppedReceivedMessages: Long
+        get() = currentBtController?.getDroppedReceivedMessages() ?: 0L
+
     /**
      * Checks if the mobile device is connected to another device
      */
     fun isConnected() = currentBtController?.isConnected() == true
 
+    /**
+     * Return a snapshot of the latency stats of the GATT operations of the given [type], or null if
+     * the current connection type isn't [BtConnectionType.BLE].
+     */
+    @SuppressLint("NewApi") // The controller is only a BleController if BLE is supported
+    fun getGattOperationStats(type: GattOperation.Type) =
+        (currentBtController as? BleController)?.getGattOperationStats(type)
+
+    /**
+     * PHY used for transmitting in the BLE connection, one of the `PHY_LE_*` constants of
+     * [android.bluetooth.BluetoothDevice], or null if the current connection type isn't
+     * [BtConnectionType.BLE]. See [BleProfile.preferLe2MPhy].
+     */
+    @SuppressLint("NewApi") // The controller is only a BleController if BLE is supported
+    fun getBleTxPhy() = (currentBtController as? BleController)?.getTxPhy()
+
+    /**
+     * PHY used for receiving in the BLE connection, see [getBleTxPhy].
+     */
+    @SuppressLint("NewApi") // The controller is only a BleController if BLE is supported
+    fun getBleRxPhy() = (currentBtController as? BleController)?.getRxPhy()
+
+    /**
+     * Forget the services, MTU and name cached for every BLE device, so the next connections go
+     * through the whole setup again. Does nothing if the current connection type isn't
+     * [BtConnectionType.BLE].
+     */
+    @SuppressLint("NewApi") // The controller is only a BleController if BLE is supported
+    fun clearBleProfileCache() {
+        (currentBtController as? BleController)?.clearProfileCache(context)
+    }
+
+    /**
+     * Keep the BLE connections in the given priority, one of the `CONNECTION_PRIORITY_*` constants
+     * of [android.bluetooth.BluetoothGatt], instead of raising it during the bursts of messages and
+     * lowering it when idle. Only on Android 5.0 and later.
+     */
+    @SuppressLint("NewApi") // The controller is only a BleController if BLE is supported
+    fun pinBleConnectionPriority(priority: Int) {
+        blePinnedConnectionPriority = priority
+        (currentBtController as? BleController)?.setPinnedConnectionPriority(priority)
+    }
+
+    /**
+     * Manage the priority of the BLE connections automatically again, see [BleProfile.highPriorityIdleTimeoutMs].
+     */
+    @SuppressLint("NewApi") // The controller is only a BleController if BLE is supported
+    fun unpinBleConnectionPriority() {
+        blePinnedConnectionPriority = null
+        (currentBtController as? BleController)?.setPinnedConnectionPriority(null)
+    }
+
     /**
      * This method should be called when the user allows the app to enable or disable the
      * bluetooth adapter when it needs it.
@@ -432,6 +660,11 @@ class BluetoothManager(ctx: Context) {
 
                     }
 
+                    Droid2InoConstants.MESSAGE_RECEIVED_BATCH -> {
+                        if (msg.obj is ReceivedMessagesDispatcher)
+                            (msg.obj as ReceivedMessagesDispatcher).deliverMessages(btCommunicationListener)
+                    }
+
                     Droid2InoConstants.MESSAGE_DEVICE_NAME -> {
                         // save the connected device's name
                         if (msg.obj is String)
@@ -0,0 +1,37 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication
+
+/**
+ * Opt-in listener for receiving together the messages collected during a batch window, see
+ * [BluetoothManager.receiveBatchWindowMs]. Implement it in the same class as the
+ * [BtCommunicationListener]; the messages of listeners that don't implement it are delivered one by
+ * one to [BtCommunicationListener.onMessageReceived], even when the batching is enabled.
+ */
+interface BtBatchListener {
+    /**
+     * Callback that will be invoked with all the messages received during a batch window.
+     *
+     * @param messages new messages in the order they were received
+     */
+    fun onMessagesReceived(messages: List<String>)
+}
@@ -77,7 +77,7 @@ interface BtCommunicationListener {
  * Any custom listener that cares only about a subset of the methods of this listener can
  * simply subclass this adapter class instead of implementing the interface directly.
  */
-abstract class BtCommunicationListenerAdapter : BtCommunicationListener {
+abstract class BtCommunicationListenerAdapter : BtCommunicationListener, BtBatchListener {
     /**
      * {@inheritDoc}
      */
@@ -102,6 +102,13 @@ abstract class BtCommunicationListenerAdapter : BtCommunicationListener {
     override fun onMessageReceived(message: String) {
     }
 
+    /**
+     * Deliver each message of the batch to [onMessageReceived] by default.
+     */
+    override fun onMessagesReceived(messages: List<String>) {
+        for (message in messages) onMessageReceived(message)
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -25,6 +25,8 @@ package com.bq.robotic.droid2ino.communication
 
 import android.content.Context
 import android.os.Handler
+import com.bq.robotic.droid2ino.communication.framing.FrameCodec
+import com.bq.robotic.droid2ino.utils.Droid2InoConstants
 
 interface BtControllerInterface {
     /**
@@ -48,15 +50,73 @@ interface BtControllerInterface {
 
     /**
      * Send a message to a connected device. Depending on the implementation requested, it will be
-     * sent via BluetoothSocket or BLE (bluetooth low energy).
+     * sent via BluetoothSocket or BLE (bluetooth low energy). The message is queued and the
+     * returned [SendHandle] is completed once it was sent, or failed with the cause.
      */
-    fun sendMessage(message: String)
+    fun sendMessage(message: String): SendHandle
 
     /**
      * Send a message to a connected device. Depending on the implementation requested, it will be
      * sent via BluetoothSocket or BLE (bluetooth low energy).
      */
-    fun sendMessage(messageBuffer: ByteArray)
+    fun sendMessage(messageBuffer: ByteArray): SendHandle
+
+    /**
+     * Send a message to a connected device with the given [priority]. The pending messages of a
+     * higher priority are sent first. If [coalesceKey] isn't null, the message replaces the
+     * pending, not sent yet, message of the same priority with the same key.
+     */
+    fun sendMessage(message: String, priority: SendPriority, coalesceKey: Any?): SendHandle
+
+    /**
+     * Send a message to a connected device with the given [priority]. See
+     * [sendMessage] with a String message.
+     */
+    fun sendMessage(messageBuffer: ByteArray, priority: SendPriority, coalesceKey: Any?): SendHandle
+
+    /**
+     * Send the first [length] bytes of [messageBuffer] with the given [priority]. The array isn't
+     * copied, so it mustn't be modified until the returned handle is done. Unless all of the array
+     * is sent, the handle and the sent event have no message, as the array may be reused later.
+     */
+    fun sendMessage(messageBuffer: ByteArray, length: Int, priority: SendPriority, coalesceKey: Any?): SendHandle
+
+    /**
+     * Set the [FrameCodec] used to delimit the messages exchanged with the connected device. It will
+     * be used from the next connection on.
+     */
+    fun setFrameCodec(frameCodec: FrameCodec)
+
+    /**
+     * Set a [BtFrameListener] for receiving the messages as raw bytes instead of as Strings, or
+     * null for receiving them as Strings again.
+     */
+    fun setFrameListener(frameListener: BtFrameListener?)
+
+    /**
+     * Set the time in milliseconds during which the received messages are collected before being
+     * delivered together. See [ReceivedMessagesDispatcher.batchWindowMs].
+     */
+    fun setReceiveBatchWindow(batchWindowMs: Long)
+
+    /**
+     * Set the max number of received messages pending to be delivered and the policy to apply when
+     * that number is reached. See [ReceivedMessagesDispatcher.configureQueue]. Throws an
+     * [IllegalStateException] if it is called while connected.
+     */
+    fun setReceiveQueue(capacity: Int, policy: ReceiveQueuePolicy,
+                        keyExtractor: ReceivedMessagesDispatcher.MessageKeyExtractor?)
+
+    /**
+     * Number of received messages discarded by the policy of the receive queue.
+     */
+    fun getDroppedReceivedMessages(): Long
+
+    /**
+     * Set the events the listener is subscribed to, a combination of the
+     * [Droid2InoConstants.EVENT_ALL] flags. The rest of events aren't produced.
+     */
+    fun setEventMask(eventMask: Int)
 
     /**
      * Checks if this device is connected to another device.
@@ -0,0 +1,42 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication
+
+import java.nio.ByteBuffer
+
+/**
+ * Opt-in listener for receiving each message as raw bytes, without decoding it to a String. When a
+ * [BtFrameListener] is set in the [BluetoothManager], the received messages are delivered only to
+ * it and [BtCommunicationListener.onMessageReceived] isn't called, so the receive path doesn't
+ * decode any charset nor allocate any String.
+ */
+interface BtFrameListener {
+    /**
+     * Callback invoked for each received message, directly from the thread that receives the data:
+     * the connection thread for BT socket connections and a binder thread for BLE connections.
+     * Don't block it, as no more data will be read until it returns.
+     *
+     * [frame] is a read only view of a buffer that is reused for the next messages. The message is
+     * between its position and its limit and it is only valid until this method returns, copy it
+     * if it is needed after that.
+     */
+    fun onFrameReceived(frame: ByteBuffer)
+}
@@ -0,0 +1,196 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication
+
+import android.util.Log
+import com.bq.robotic.droid2ino.communication.ble.GattClient
+import com.bq.robotic.droid2ino.utils.Droid2InoConstants.ConnectionState
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * In memory trace of the events of the connections hot paths, such as the bytes read, the frames
+ * decoded or the GATT operations. Each event is recorded as a type and two numbers in preallocated
+ * arrays, so recording doesn't allocate nor build any String, and the last events can be dumped
+ * on demand when a connection misbehaves.
+ *
+ * It is disabled by default. The events must be recorded only after checking [isEnabled], so a
+ * disabled trace costs a single field read:
+ *
+ *     if (ConnectionTrace.isEnabled) ConnectionTrace.record(ConnectionTrace.SOCKET_READ, bytes)
+ */
+object ConnectionTrace {
+    private const val LOG_TAG = "ConnectionTrace"
+
+    const val DEFAULT_CAPACITY = 1024
+
+    // Event types
+    /** Bytes read from the BT socket. arg1: number of bytes. */
+    const val SOCKET_READ = 1
+    /** Bytes written to the BT socket. arg1: number of bytes. */
+    const val SOCKET_WRITE = 2
+    /** Message decoded from the received bytes. arg1: length of the message. */
+    const val FRAME_EMITTED = 3
+    /** State of the BT socket connection changed. arg1: ordinal of the new ConnectionState. */
+    const val SOCKET_STATE_CHANGED = 4
+    /** State of the GATT client changed. arg1: ordinal of the new GattClient.State. */
+    const val GATT_STATE_CHANGED = 5
+    /** GATT operation requested. arg1: operation, see OP_*. arg2: number of bytes, if any. */
+    const val GATT_OP_START = 6
+    /** GATT operation completed. arg1: operation, see OP_*. arg2: GATT status. */
+    const val GATT_OP_END = 7
+    /** Notification of a characteristic received. arg1: number of bytes. */
+    const val GATT_NOTIFICATION = 8
+    /** PHY of the BLE connection changed. arg1: transmitter PHY. arg2: receiver PHY. */
+    const val GATT_PHY_UPDATED = 9
+
+    // GATT operations
+    const val OP_DISCOVER_SERVICES = 1
+    const val OP_READ_CHARACTERISTIC = 2
+    const val OP_WRITE_CHARACTERISTIC = 3
+    const val OP_WRITE_DESCRIPTOR = 4
+    const val OP_REQUEST_MTU = 5
+    const val OP_REQUEST_CONNECTION_PRIORITY = 6
+    const val OP_SET_PREFERRED_PHY = 7
+
+    /**
+     * Whether the events are being recorded. Check it before calling [record].
+     */
+    @JvmField @Volatile var isEnabled = false
+
+    private class Events(val capacity: Int) {
+        val timestamps = LongArray(capacity)
+        val types = IntArray(capacity)
+        val firstArgs = IntArray(capacity)
+        val secondArgs = IntArray(capacity)
+        // Number of events recorded, the next one goes to the index count % capacity
+        val count = AtomicLong()
+    }
+
+    @Volatile private var events: Events? = null
+
+    /**
+     * Start recording events, keeping the last [capacity] ones. The previous events are discarded.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun enable(capacity: Int = DEFAULT_CAPACITY) {
+        require(capacity > 0) { "The capacity must be greater than 0" }
+        events = Events(capacity)
+        isEnabled = true
+    }
+
+    /**
+     * Stop recording events. The recorded events are kept until [enable] is called again.
+     */
+    @JvmStatic
+    fun disable() {
+        isEnabled = false
+    }
+
+    /**
+     * Record an event of the given [type] with its arguments. It can be called from any thread.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun record(type: Int, arg1: Int, arg2: Int = 0) {
+        val currentEvents = events ?: return
+        val index = (currentEvents.count.getAndIncrement() % currentEvents.capacity).toInt()
+
+        currentEvents.timestamps[index] = System.nanoTime()
+        currentEvents.types[index] = type
+        currentEvents.firstArgs[index] = arg1
+        currentEvents.secondArgs[index] = arg2
+    }
+
+    /**
+     * Write the recorded events to [out], from the oldest to the newest, one per line. The events
+     * recorded while dumping may appear incomplete.
+     */
+    @JvmStatic
+    fun dump(out: Appendable) {
+        val currentEvents = events ?: return
+        val count = currentEvents.count.get()
+        val first = Math.max(0, count - currentEvents.capacity)
+        if (first == count) return
+
+        val startTimestamp = currentEvents.timestamps[(first % currentEvents.capacity).toInt()]
+        for (position in first until count) {
+            val index = (position % currentEvents.capacity).toInt()
+            out.append(String.format(Locale.US, "%10.3f ms %-21s %s\n",
+                (currentEvents.timestamps[index] - startTimestamp) / 1_000_000.0,
+                typeToString(currentEvents.types[index]),
+                argsToString(currentEvents.types[index], currentEvents.firstArgs[index],
+                    currentEvents.secondArgs[index])))
+        }
+    }
+
+    /**
+     * Return the recorded events as text. See [dump].
+     */
+    @JvmStatic
+    fun dump(): String = StringBuilder().also { dump(it) }.toString()
+
+    /**
+     * Write the recorded events to the log, one per line.
+     */
+    @JvmStatic
+    fun dumpToLog() {
+        for (line in dump().lineSequence()) {
+            if (line.isNotEmpty()) Log.i(LOG_TAG, line)
+        }
+    }
+
+    private fun typeToString(type: Int) = when (type) {
+        SOCKET_READ -> "SOCKET_READ"
+        SOCKET_WRITE -> "SOCKET_WRITE"
+        FRAME_EMITTED -> "FRAME_EMITTED"
+        SOCKET_STATE_CHANGED -> "SOCKET_STATE_CHANGED"
+        GATT_STATE_CHANGED -> "GATT_STATE_CHANGED"
+        GATT_OP_START -> "GATT_OP_START"
+        GATT_OP_END -> "GATT_OP_END"
+        GATT_NOTIFICATION -> "GATT_NOTIFICATION"
+        GATT_PHY_UPDATED -> "GATT_PHY_UPDATED"
+        else -> "EVENT_$type"
+    }
+
+    private fun operationToString(operation: Int) = when (operation) {
+        OP_DISCOVER_SERVICES -> "DISCOVER_SERVICES"
+        OP_READ_CHARACTERISTIC -> "READ_CHARACTERISTIC"
+        OP_WRITE_CHARACTERISTIC -> "WRITE_CHARACTERISTIC"
+        OP_WRITE_DESCRIPTOR -> "WRITE_DESCRIPTOR"
+        OP_REQUEST_MTU -> "REQUEST_MTU"
+        OP_REQUEST_CONNECTION_PRIORITY -> "REQUEST_CONNECTION_PRIORITY"
+        OP_SET_PREFERRED_PHY -> "SET_PREFERRED_PHY"
+        else -> "OP_$operation"
+    }
+
+    private fun argsToString(type: Int, arg1: Int, arg2: Int) = when (type) {
+        SOCKET_READ, SOCKET_WRITE, GATT_NOTIFICATION -> "bytes=$arg1"
+        FRAME_EMITTED -> "length=$arg1"
+        SOCKET_STATE_CHANGED -> "state=${ConnectionState.values().getOrNull(arg1) ?: arg1}"
+        GATT_STATE_CHANGED -> "state=${GattClient.State.values().getOrNull(arg1) ?: arg1}"
+        GATT_OP_START -> "${operationToString(arg1)} bytes=$arg2"
+        GATT_OP_END -> "${operationToString(arg1)} status=$arg2"
+        GATT_PHY_UPDATED -> "tx=$arg1 rx=$arg2"
+        else -> "$arg1 $arg2"
+    }
+}
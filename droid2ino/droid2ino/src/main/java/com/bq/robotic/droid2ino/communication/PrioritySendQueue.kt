@@ -0,0 +1,104 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication
+
+import java.util.ArrayDeque
+
+/**
+ * Thread safe queue of messages pending to be sent, with a lane for each [SendPriority]. The
+ * messages are polled from the highest priority lane that isn't empty, in the order they were
+ * offered within each lane.
+ *
+ * A message offered with a coalesce key replaces the pending message of the same lane with the
+ * same key, keeping its place in the lane, so only the latest value of a control is sent.
+ */
+internal class PrioritySendQueue<T : Any> {
+
+    class Entry<T : Any>(message: T, val priority: SendPriority, val coalesceKey: Any?) {
+        var message = message
+            internal set
+    }
+
+    private val lanes = Array(SendPriority.values().size) { ArrayDeque<Entry<T>>() }
+    private val pendingEntriesByKey = Array(SendPriority.values().size) { HashMap<Any, Entry<T>>() }
+
+    /**
+     * Number of pending messages.
+     */
+    val size: Int
+        @Synchronized get() = lanes.sumBy { it.size }
+
+    /**
+     * Add a message to the lane of its [priority]. Return the pending message replaced by this one
+     * because it has the same [coalesceKey], or null if none was replaced.
+     */
+    @Synchronized
+    fun offer(message: T, priority: SendPriority, coalesceKey: Any? = null): T? {
+        val lane = priority.ordinal
+
+        if (coalesceKey != null) {
+            pendingEntriesByKey[lane][coalesceKey]?.let {
+                val replacedMessage = it.message
+                it.message = message
+                return replacedMessage
+            }
+        }
+
+        val entry = Entry(message, priority, coalesceKey)
+        lanes[lane].addLast(entry)
+        if (coalesceKey != null) pendingEntriesByKey[lane][coalesceKey] = entry
+        return null
+    }
+
+    /**
+     * Remove and return the next message to send with its priority, or null if there is none.
+     */
+    @Synchronized
+    fun pollEntry(): Entry<T>? {
+        for (lane in lanes.indices) {
+            val entry = lanes[lane].pollFirst() ?: continue
+            entry.coalesceKey?.let { pendingEntriesByKey[lane].remove(it) }
+            return entry
+        }
+
+        return null
+    }
+
+    /**
+     * Remove and return the next message to send, or null if there is none.
+     */
+    fun poll(): T? = pollEntry()?.message
+
+    /**
+     * Remove all the pending messages and return them.
+     */
+    @Synchronized
+    fun clear(): List<T> {
+        val messages = ArrayList<T>(size)
+        for (lane in lanes.indices) {
+            lanes[lane].forEach { messages.add(it.message) }
+            lanes[lane].clear()
+            pendingEntriesByKey[lane].clear()
+        }
+
+        return messages
+    }
+}
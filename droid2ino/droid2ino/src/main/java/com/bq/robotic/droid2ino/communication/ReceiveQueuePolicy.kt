@@ -0,0 +1,47 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication
+
+/**
+ * What to do with a received message when the queue between the thread that receives the messages
+ * and the thread that delivers them to the listener is full. See [ReceivedMessagesDispatcher].
+ */
+enum class ReceiveQueuePolicy {
+    /**
+     * Wait until the listener consumes some messages. No message is lost, but no more data is read
+     * from the connection in the meantime, so the backpressure reaches the connected device. Only
+     * for BT socket connections, BLE connections use [DROP_OLDEST] instead.
+     */
+    BLOCK_PRODUCER,
+
+    /**
+     * Discard the oldest pending message to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Keep only the latest pending message of each stream, identified by the key of the message
+     * given by a [ReceivedMessagesDispatcher.MessageKeyExtractor]. A new message replaces the
+     * pending one with the same key, keeping its place in the queue. When the queue is full of
+     * different keys, the oldest pending message is discarded.
+     */
+    LATEST_PER_KEY
+}
@@ -0,0 +1,134 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication
+
+import android.os.Handler
+import com.bq.robotic.droid2ino.utils.Droid2InoConstants
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Hands the received messages over from the thread that receives them to the communication
+ * [Handler].
+ *
+ * The messages are stored in a bounded queue and a single [Droid2InoConstants.MESSAGE_RECEIVED_BATCH]
+ * message is pending in the handler at any time, which delivers all the queued messages through
+ * [deliverMessages]. So a slow listener can't make the handler message queue grow without limit.
+ * When the queue is full, the [ReceiveQueuePolicy] decides if the receiving thread waits or which
+ * messages are discarded. See [configureQueue].
+ *
+ * By default each message is delivered to [BtCommunicationListener.onMessageReceived] as soon as
+ * possible. When batching is enabled, the messages received during the batch window are delivered
+ * together, at once to [BtBatchListener.onMessagesReceived] if the listener implements it. This
+ * reduces the handler traffic and the listener calls during bursts of messages.
+ */
+class ReceivedMessagesDispatcher(private val handler: Handler) {
+
+    companion object {
+        /**
+         * Batch window value for sending each message to the handler as soon as it is received.
+         */
+        const val NO_BATCHING = -1L
+
+        /**
+         * Default max number of received messages pending to be delivered.
+         */
+        const val DEFAULT_QUEUE_CAPACITY = 256
+
+        /**
+         * Default policy when the queue of received messages is full, which never makes the
+         * receiving thread wait for the listener.
+         */
+        @JvmField val DEFAULT_QUEUE_POLICY = ReceiveQueuePolicy.DROP_OLDEST
+    }
+
+    /**
+     * Obtains the key of the stream a received message belongs to, for the
+     * [ReceiveQueuePolicy.LATEST_PER_KEY] policy. It is called from the thread that receives the
+     * messages.
+     */
+    interface MessageKeyExtractor {
+        /**
+         * Return the key of the [message], or null if the message must never be replaced by a
+         * newer one.
+         */
+        fun keyOf(message: String): Any?
+    }
+
+    /**
+     * Time in milliseconds during which the received messages are collected before being delivered
+     * together. 0 delivers together all the messages received before the next turn of the handler
+     * looper. [NO_BATCHING] disables the batching.
+     */
+    @Volatile var batchWindowMs = NO_BATCHING
+
+    @Volatile private var queue = ReceivedMessagesQueue(DEFAULT_QUEUE_CAPACITY, DEFAULT_QUEUE_POLICY, null)
+    private val isDeliveryScheduled = AtomicBoolean(false)
+
+    /**
+     * Number of received messages discarded by the policy of the queue.
+     */
+    val droppedMessages: Long
+        get() = queue.droppedMessages
+
+    /**
+     * Set the max number of received messages pending to be delivered and what to do when that
+     * number is reached. The [keyExtractor] is required for [ReceiveQueuePolicy.LATEST_PER_KEY].
+     * The capacity is rounded up to a power of two.
+     *
+     * It must be called before starting to receive messages. Throws an [IllegalStateException] if
+     * there are messages pending to be delivered, instead of losing them.
+     */
+    @JvmOverloads
+    fun configureQueue(capacity: Int, policy: ReceiveQueuePolicy, keyExtractor: MessageKeyExtractor? = null) {
+        check(queue.size() == 0) { "The receive queue can't be changed while there are pending messages" }
+        queue = ReceivedMessagesQueue(capacity, policy, keyExtractor)
+    }
+
+    /**
+     * Queue the received [message] for delivering it to the handler. Called from the thread that
+     * receives the messages.
+     */
+    fun dispatch(message: String) {
+        queue.offer(message)
+
+        if (isDeliveryScheduled.compareAndSet(false, true)) {
+            handler.sendMessageDelayed(handler.obtainMessage(Droid2InoConstants.MESSAGE_RECEIVED_BATCH, this),
+                Math.max(batchWindowMs, 0))
+        }
+    }
+
+    /**
+     * Deliver the messages queued since the last call to the [listener]. Called from the handler
+     * thread when it receives the [Droid2InoConstants.MESSAGE_RECEIVED_BATCH] message.
+     */
+    fun deliverMessages(listener: BtCommunicationListener?) {
+        // Allow scheduling a new delivery before draining, so no message is left behind
+        isDeliveryScheduled.set(false)
+        val messages = queue.drain()
+        if (messages.isEmpty() || listener == null) return
+
+        if (batchWindowMs >= 0 && listener is BtBatchListener) {
+            listener.onMessagesReceived(messages)
+        } else {
+            for (message in messages) listener.onMessageReceived(message)
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Bounded lock free queue of received messages between one producer, the thread receiving them,
+ * and one consumer, the thread delivering them. When it is full the [policy] decides if the
+ * producer waits or which message is discarded.
+ *
+ * Discarding the oldest message requires the producer to move the head of the queue, so the head
+ * is advanced with a compare and set both by the consumer and the producer.
+ */
+internal class ReceivedMessagesQueue(
+    requestedCapacity: Int,
+    val policy: ReceiveQueuePolicy,
+    private val keyExtractor: ReceivedMessagesDispatcher.MessageKeyExtractor?) {
+
+    companion object {
+        // Max time a blocked producer waits before checking again if there is room in the queue
+        private const val BLOCKED_PRODUCER_WAIT_MS = 10L
+    }
+
+    /**
+     * Element of the queue that stands for the latest message of a key, which is stored in
+     * [latestMessagesByKey] so it can be replaced while it is pending.
+     */
+    private class KeyMarker(val key: Any)
+
+    val capacity = if (requestedCapacity <= 1) 1 else Integer.highestOneBit(requestedCapacity - 1) shl 1
+    private val mask = capacity - 1
+    private val slots = AtomicReferenceArray<Any>(capacity)
+    // Index of the next element to consume
+    private val head = AtomicLong()
+    // Index of the next element to produce, only written by the producer
+    private val tail = AtomicLong()
+
+    private val latestMessagesByKey = ConcurrentHashMap<Any, String>()
+    // Only accessed by the producer
+    private val keyMarkers = HashMap<Any, KeyMarker>()
+
+    // The producer thread while it is parked waiting for room in the queue
+    @Volatile private var waitingProducer: Thread? = null
+
+    private val droppedMessagesCount = AtomicLong()
+
+    init {
+        require(requestedCapacity > 0) { "The capacity must be greater than 0" }
+        require(policy != ReceiveQueuePolicy.LATEST_PER_KEY || keyExtractor != null) {
+            "A key extractor is required for the LATEST_PER_KEY policy"
+        }
+    }
+
+    /**
+     * Number of messages discarded because the queue was full or they were replaced by a newer
+     * message with the same key.
+     */
+    val droppedMessages: Long
+        get() = droppedMessagesCount.get()
+
+    /**
+     * Add a message to the queue. Called only from the producer thread.
+     */
+    fun offer(message: String) {
+        val element: Any = if (policy == ReceiveQueuePolicy.LATEST_PER_KEY) {
+            val key = keyExtractor!!.keyOf(message)
+            if (key != null) {
+                // The message replaces the pending one, whose marker is already in the queue
+                if (latestMessagesByKey.put(key, message) != null) {
+                    droppedMessagesCount.incrementAndGet()
+                    return
+                }
+                keyMarkers.getOrPut(key) { KeyMarker(key) }
+            } else {
+                message
+            }
+        } else {
+            message
+        }
+
+        while (true) {
+            val currentTail = tail.get()
+            val currentHead = head.get()
+
+            if (currentTail - currentHead < capacity) {
+                slots.lazySet(indexOf(currentTail), element)
+                tail.lazySet(currentTail + 1)
+                return
+            }
+
+            if (policy == ReceiveQueuePolicy.BLOCK_PRODUCER) {
+                if (!awaitRoom()) {
+                    droppedMessagesCount.incrementAndGet()
+                    return
+                }
+            } else if (head.compareAndSet(currentHead, currentHead + 1)) {
+                // The slot isn't overwritten until the tail moves, so the discarded element is there
+                discard(slots.get(indexOf(currentHead)))
+            }
+        }
+    }
+
+    /**
+     * Remove all the pending messages, in the order they were received. Called only from the
+     * consumer thread.
+     */
+    fun drain(): List<String> {
+        val messages = ArrayList<String>(size())
+        while (true) {
+            messages.add(poll() ?: break)
+        }
+
+        waitingProducer?.let { LockSupport.unpark(it) }
+        return messages
+    }
+
+    fun size() = (tail.get() - head.get()).toInt().coerceIn(0, capacity)
+
+    private fun poll(): String? {
+        while (true) {
+            val currentHead = head.get()
+            if (currentHead == tail.get()) return null
+
+            val element = slots.get(indexOf(currentHead))
+            // If the producer discarded this element meanwhile the compare and set fails
+            if (head.compareAndSet(currentHead, currentHead + 1)) {
+                return if (element is KeyMarker) latestMessagesByKey.remove(element.key) ?: continue
+                       else element as String
+            }
+        }
+    }
+
+    private fun discard(element: Any?) {
+        if (element is KeyMarker) latestMessagesByKey.remove(element.key)
+        droppedMessagesCount.incrementAndGet()
+    }
+
+    /**
+     * Wait until there is room in the queue. Returns false if the producer thread was interrupted.
+     */
+    private fun awaitRoom(): Boolean {
+        val producer = Thread.currentThread()
+        // Published before checking the queue, so the consumer either sees it or leaves room
+        waitingProducer = producer
+        try {
+            while (tail.get() - head.get() >= capacity) {
+                if (producer.isInterrupted) return false
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(BLOCKED_PRODUCER_WAIT_MS))
+            }
+            return true
+        } finally {
+            waitingProducer = null
+        }
+    }
+
+    private fun indexOf(position: Long) = (position and mask.toLong()).toInt()
+}
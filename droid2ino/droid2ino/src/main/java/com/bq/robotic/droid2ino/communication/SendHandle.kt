@@ -0,0 +1,153 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication
+
+import android.os.Handler
+import java.util.concurrent.CancellationException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Handle of a message sent to the connected device, completed once the message was written in the
+ * BT socket, or once the last chunk of it was confirmed by the BLE device. If the message couldn't
+ * be sent it fails with the [cause], a [CancellationException] if it was replaced by a newer
+ * message with the same coalesce key or discarded before being sent.
+ */
+class SendHandle internal constructor(
+    /**
+     * The sent message, a String or a ByteArray.
+     */
+    val message: Any?) {
+
+    companion object {
+        /**
+         * Create a handle that already failed with the given [cause].
+         */
+        internal fun failed(message: Any?, cause: Throwable) = SendHandle(message).apply { fail(cause) }
+    }
+
+    /**
+     * Listener for being notified when the message was sent or couldn't be sent.
+     */
+    interface OnSendCompletedListener {
+        fun onSendCompleted(handle: SendHandle)
+    }
+
+    private val lock = ReentrantLock()
+    private val doneCondition = lock.newCondition()
+
+    // Guarded by lock
+    private var listeners: MutableList<OnSendCompletedListener>? = null
+
+    @Volatile var isDone = false
+        private set
+
+    /**
+     * The reason why the message couldn't be sent, or null if it was sent or it is still pending.
+     */
+    @Volatile var cause: Throwable? = null
+        private set
+
+    /**
+     * Return true if the message was sent.
+     */
+    fun isSuccess() = isDone && cause == null
+
+    /**
+     * Return true if the message was replaced or discarded before being sent.
+     */
+    fun isCancelled() = cause is CancellationException
+
+    /**
+     * Add a [listener] that is notified once the message was sent or failed, right away if it
+     * already was. It is notified in the thread that completed the send, so it must return quickly.
+     */
+    fun addListener(listener: OnSendCompletedListener) {
+        lock.withLock {
+            if (!isDone) {
+                (listeners ?: mutableListOf<OnSendCompletedListener>().also { listeners = it }).add(listener)
+                return
+            }
+        }
+
+        listener.onSendCompleted(this)
+    }
+
+    /**
+     * Add a [listener] that is notified in the thread of the given [handler] once the message was
+     * sent or failed.
+     */
+    fun addListener(listener: OnSendCompletedListener, handler: Handler) {
+        addListener(object : OnSendCompletedListener {
+            override fun onSendCompleted(handle: SendHandle) {
+                handler.post { listener.onSendCompleted(handle) }
+            }
+        })
+    }
+
+    /**
+     * Wait until the message was sent or failed, for [timeoutMs] at most. Returns true if it is
+     * done. It mustn't be called from the main thread.
+     */
+    @JvmOverloads
+    @Throws(InterruptedException::class)
+    fun await(timeoutMs: Long = 0L): Boolean {
+        lock.withLock {
+            if (timeoutMs <= 0L) {
+                while (!isDone) doneCondition.await()
+                return true
+            }
+
+            var remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+            while (!isDone && remainingNanos > 0L) {
+                remainingNanos = doneCondition.awaitNanos(remainingNanos)
+            }
+            return isDone
+        }
+    }
+
+    /**
+     * Mark the message as sent. Completing an already done handle has no effect.
+     */
+    internal fun complete() = finish(null)
+
+    /**
+     * Mark the message as not sent because of the given [cause]. Completing an already done
+     * handle has no effect.
+     */
+    internal fun fail(cause: Throwable) = finish(cause)
+
+    private fun finish(cause: Throwable?) {
+        val listenersToNotify = lock.withLock {
+            if (isDone) return
+            this.cause = cause
+            isDone = true
+            doneCondition.signalAll()
+            listeners.also { listeners = null }
+        }
+
+        listenersToNotify?.forEach { it.onSendCompleted(this) }
+    }
+
+    override fun toString() = "SendHandle(message=$message, isDone=$isDone, cause=$cause)"
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication
+
+/**
+ * Priority of a message sent to the connected device. The pending messages of a higher priority
+ * are always sent before the ones of a lower priority, so a command isn't delayed by the bulk
+ * data waiting to be sent.
+ */
+enum class SendPriority {
+    /**
+     * Commands that must be sent as soon as possible, such as a stop command.
+     */
+    URGENT,
+
+    /**
+     * Periodic control values, such as the joystick updates. It is the default priority.
+     */
+    CONTROL,
+
+    /**
+     * Data that can wait, such as configuration dumps.
+     */
+    BULK;
+
+    companion object {
+        /**
+         * Priority of the messages sent without an explicit priority.
+         */
+        @JvmField val DEFAULT = CONTROL
+    }
+}
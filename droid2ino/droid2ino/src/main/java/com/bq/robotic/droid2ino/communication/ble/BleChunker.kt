@@ -0,0 +1,88 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.ble
+
+/**
+ * Splits the encoded frames in chunks of at most [maxChunkSize] bytes, [headerSize] included, to be
+ * written in a characteristic. A characteristic is written with the whole value array, so there is
+ * an array for each chunk size, allocated the first time it is needed and reused for every later
+ * chunk of that size.
+ */
+internal class BleChunker(maxChunkSize: Int) {
+    /**
+     * Max number of bytes of each chunk, the payload allowed by the negotiated MTU.
+     */
+    var maxChunkSize = maxChunkSize
+        set(value) {
+            if (value == field) return
+            field = value
+            chunks = arrayOfNulls(value + 1)
+        }
+
+    /**
+     * Bytes left at the start of each chunk for the caller to fill, such as a sequence number.
+     */
+    var headerSize = 0
+        set(value) {
+            if (value == field) return
+            field = value
+            chunks = arrayOfNulls(maxChunkSize + 1)
+        }
+
+    /**
+     * Don't split the UTF-8 sequences of text frames between chunks, so the devices that handle
+     * each chunk as text on its own never get half a character. The chunks may be up to 3 bytes
+     * shorter.
+     */
+    var keepUtf8Sequences = true
+
+    private var chunks = arrayOfNulls<ByteArray>(maxChunkSize + 1)
+
+    /**
+     * Number of bytes of the frame of the given [length] that fit in the chunk starting at
+     * [offset], the header not included.
+     */
+    fun nextChunkSize(frame: ByteArray, offset: Int, length: Int): Int {
+        val maxPayloadSize = maxChunkSize - headerSize
+        val end = offset + maxPayloadSize
+        if (end >= length) return length - offset
+        if (!keepUtf8Sequences) return maxPayloadSize
+
+        // Move the end back to the first byte of the sequence it splits, if any. Continuation
+        // bytes are 10xxxxxx, and a sequence has 3 of them at most
+        var chunkEnd = end
+        while (chunkEnd > end - 3 && chunkEnd > offset + 1 && isContinuationByte(frame[chunkEnd])) chunkEnd--
+        return if (isContinuationByte(frame[chunkEnd])) maxPayloadSize else chunkEnd - offset
+    }
+
+    /**
+     * Copy the [size] bytes at [offset] of the frame after the header of the chunk of that size and
+     * return it. The chunk is overwritten by the next call with the same size.
+     */
+    fun copyChunk(frame: ByteArray, offset: Int, size: Int): ByteArray {
+        val chunk = chunks[size] ?: ByteArray(headerSize + size).also { chunks[size] = it }
+        System.arraycopy(frame, offset, chunk, headerSize, size)
+        return chunk
+    }
+
+    private fun isContinuationByte(byte: Byte) = byte.toInt() and 0xC0 == 0x80
+}
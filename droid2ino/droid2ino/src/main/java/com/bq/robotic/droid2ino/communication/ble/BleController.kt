@@ -31,6 +31,16 @@ import android.support.annotation.RequiresApi
 import android.util.Log
 import com.bq.robotic.droid2ino.R
 import com.bq.robotic.droid2ino.communication.BtControllerInterface
+import com.bq.robotic.droid2ino.communication.BtFrameListener
+import com.bq.robotic.droid2ino.communication.PrioritySendQueue
+import com.bq.robotic.droid2ino.communication.ReceiveQueuePolicy
+import com.bq.robotic.droid2ino.communication.ReceivedMessagesDispatcher
+import com.bq.robotic.droid2ino.communication.SendHandle
+import com.bq.robotic.droid2ino.communication.SendPriority
+import com.bq.robotic.droid2ino.communication.framing.ByteArrayPool
+import com.bq.robotic.droid2ino.communication.framing.FrameCodec
+import com.bq.robotic.droid2ino.communication.framing.PooledByteArray
+import com.bq.robotic.droid2ino.communication.framing.Utf8Encoder
 import com.bq.robotic.droid2ino.utils.ConnectionErrorFeedback
 import com.bq.robotic.droid2ino.utils.Droid2InoConstants
 import com.bq.robotic.droid2ino.utils.Droid2InoConstants.ConnectionState
@@ -43,21 +53,48 @@ class BleController(private val btAdapter: BluetoothAdapter): BtControllerInterf
 
     var bleProfile: BleProfile = BqZumCoreProfile.PROFILE
     private val gattClient by lazy { GattClient(bleProfile) }
+    private var receivedMessagesDispatcher: ReceivedMessagesDispatcher? = null
+    private var receiveBatchWindowMs = ReceivedMessagesDispatcher.NO_BATCHING
+    private var receiveQueueCapacity = ReceivedMessagesDispatcher.DEFAULT_QUEUE_CAPACITY
+    private var receiveQueuePolicy = ReceivedMessagesDispatcher.DEFAULT_QUEUE_POLICY
+    private var receiveKeyExtractor: ReceivedMessagesDispatcher.MessageKeyExtractor? = null
+
+    // Messages waiting for the gatt client to finish sending the previous one
+    private val sendQueue = PrioritySendQueue<PooledByteArray>()
+    // Guarded by sendQueue
+    private var isSendingMessage = false
 
     override fun prepareBtEnvironment(context: Context, communicationHandler: Handler) {
+        val messagesDispatcher = ReceivedMessagesDispatcher(communicationHandler)
+        messagesDispatcher.batchWindowMs = receiveBatchWindowMs
+        messagesDispatcher.configureQueue(receiveQueueCapacity, toBleQueuePolicy(receiveQueuePolicy), receiveKeyExtractor)
+        receivedMessagesDispatcher = messagesDispatcher
+
         gattClient.eventListener = (object : GattClient.OnGattEventListener {
             override fun onStateChanged(@NotNull state: GattClient.State) {
+                if (!state.isConnected()) discardPendingMessages()
+
                 if (state == GattClient.State.ERROR_CONNECTING) {
                     communicationHandler.obtainMessage(Droid2InoConstants.MESSAGE_ERROR,
                         ConnectionErrorFeedback(context.getString(R.string.connecting_bluetooth_error),
                             ConnectionState.ERROR_CONNECTING)).sendToTarget()
                 }
 
-                communicationHandler.obtainMessage(Droid2InoConstants.MESSAGE_STATE_CHANGE,
-                    parseGattStateToAppState(state)).sendToTarget()
+                if (isSubscribedTo(Droid2InoConstants.EVENT_STATE_CHANGE)) {
+                    communicationHandler.obtainMessage(Droid2InoConstants.MESSAGE_STATE_CHANGE,
+                        parseGattStateToAppState(state)).sendToTarget()
+                }
             }
 
             override fun onLastRequestStatusChanged(@NotNull requestStatus: GattClient.RequestStatus) {
+                // The message being sent finished, successfully or not, so the next one can be sent
+                when (requestStatus) {
+                    GattClient.RequestStatus.MESSAGE_SENT_TO_DEVICE,
+                    GattClient.RequestStatus.ERROR_WRITING_CUSTOM_CHARACTERISTIC,
+                    GattClient.RequestStatus.ERROR_REQUESTING_CUSTOM_WRITE_CHARACTERISTIC -> sendNextMessage()
+                    else -> { }
+                }
+
                 if (requestStatus.isError()) {
                     Log.e(LOG_TAG, "Error in the last request = $requestStatus")
 
@@ -68,17 +105,18 @@ class BleController(private val btAdapter: BluetoothAdapter): BtControllerInterf
             }
 
             override fun onMessageSent(@NotNull messageReceived: String) {
-                communicationHandler.obtainMessage(Droid2InoConstants.MESSAGE_SENT, messageReceived).sendToTarget()
+                if (isSubscribedTo(Droid2InoConstants.EVENT_MESSAGE_SENT))
+                    communicationHandler.obtainMessage(Droid2InoConstants.MESSAGE_SENT, messageReceived).sendToTarget()
             }
 
             override fun onMessageReceived(@NotNull messageSent: String) {
-                communicationHandler.obtainMessage(Droid2InoConstants.MESSAGE_RECEIVED, messageSent)
-                    .sendToTarget()
+                messagesDispatcher.dispatch(messageSent)
             }
 
             override fun onDeviceNameObtained(@NotNull deviceName: String) {
-                communicationHandler.obtainMessage(Droid2InoConstants.MESSAGE_DEVICE_NAME, deviceName)
-                    .sendToTarget()
+                if (isSubscribedTo(Droid2InoConstants.EVENT_DEVICE_NAME))
+                    communicationHandler.obtainMessage(Droid2InoConstants.MESSAGE_DEVICE_NAME, deviceName)
+                        .sendToTarget()
             }
         })
     }
@@ -103,31 +141,155 @@ class BleController(private val btAdapter: BluetoothAdapter): BtControllerInterf
     override fun stopBtConnection(context: Context) {
         // Stop the Bluetooth connect services
         gattClient.closeClient()
+        discardPendingMessages()
+    }
+
+    override fun sendMessage(message: String) = sendMessage(message, SendPriority.DEFAULT, null)
+
+    override fun sendMessage(message: String, priority: SendPriority, coalesceKey: Any?): SendHandle {
+        if (!isReadyToSend()) return SendHandle.failed(message, IOException("Not ready to send, state: ${gattClient.state}"))
+        if (message.isBlank()) return SendHandle.failed(message, IllegalArgumentException("Empty message"))
+
+        val payload = ByteArrayPool.SHARED.acquire()
+        Utf8Encoder.encode(message, payload)
+        payload.tag = message
+
+        return enqueueMessage(payload, priority, coalesceKey)
+    }
+
+    override fun sendMessage(messageBuffer: ByteArray) = sendMessage(messageBuffer, SendPriority.DEFAULT, null)
+
+    override fun sendMessage(messageBuffer: ByteArray, priority: SendPriority, coalesceKey: Any?) =
+        sendMessage(messageBuffer, messageBuffer.size, priority, coalesceKey)
+
+    override fun sendMessage(messageBuffer: ByteArray, length: Int, priority: SendPriority, coalesceKey: Any?): SendHandle {
+        val message = PooledByteArray.wrap(messageBuffer, length)
+        if (!isReadyToSend()) return SendHandle.failed(message.tag, IOException("Not ready to send, state: ${gattClient.state}"))
+        if (length == 0) return SendHandle.failed(message.tag, IllegalArgumentException("Empty message"))
+
+        return enqueueMessage(message, priority, coalesceKey)
+    }
+
+    /**
+     * The gatt client sends a single message at a time, so the messages sent meanwhile wait in
+     * the send queue until the previous one was sent. The returned handle is completed once the
+     * write of the last chunk of the message is confirmed by the device.
+     */
+    private fun enqueueMessage(message: PooledByteArray, priority: SendPriority, coalesceKey: Any?): SendHandle {
+        val sendHandle = SendHandle(message.tag)
+        message.sendHandle = sendHandle
+
+        synchronized(sendQueue) {
+            sendQueue.offer(message, priority, coalesceKey)?.release()
+            if (isSendingMessage) return sendHandle
+            isSendingMessage = true
+        }
+
+        sendNextMessage()
+        return sendHandle
     }
 
-    override fun sendMessage(message: String) {
+    private fun sendNextMessage() {
+        val nextMessage = synchronized(sendQueue) {
+            sendQueue.poll().also { if (it == null) isSendingMessage = false }
+        } ?: return
+
+        gattClient.sendMsgToConnectedDevice(nextMessage)
+    }
+
+    private fun discardPendingMessages() {
+        synchronized(sendQueue) {
+            sendQueue.clear().forEach { it.release() }
+            isSendingMessage = false
+        }
+    }
+
+    override fun setFrameCodec(frameCodec: FrameCodec) {
+        gattClient.frameCodec = frameCodec
+    }
+
+    override fun setFrameListener(frameListener: BtFrameListener?) {
+        gattClient.frameListener = frameListener
+    }
+
+    override fun setReceiveBatchWindow(batchWindowMs: Long) {
+        receiveBatchWindowMs = batchWindowMs
+        receivedMessagesDispatcher?.batchWindowMs = batchWindowMs
+    }
+
+    override fun setReceiveQueue(capacity: Int, policy: ReceiveQueuePolicy,
+                                 keyExtractor: ReceivedMessagesDispatcher.MessageKeyExtractor?) {
+        check(!isConnected()) { "The receive queue can't be changed while connected" }
+        receiveQueueCapacity = capacity
+        receiveQueuePolicy = policy
+        receiveKeyExtractor = keyExtractor
+        receivedMessagesDispatcher?.configureQueue(capacity, toBleQueuePolicy(policy), keyExtractor)
+    }
+
+    /**
+     * The messages are received in the binder thread of the GATT callbacks, which must never wait
+     * for the listener, as the write confirmations and the rest of the GATT results would be delayed
+     * too.
+     */
+    private fun toBleQueuePolicy(policy: ReceiveQueuePolicy) =
+        if (policy == ReceiveQueuePolicy.BLOCK_PRODUCER) {
+            Log.w(LOG_TAG, "BLE connections can't block the receiving thread, discarding the oldest messages instead")
+            ReceiveQueuePolicy.DROP_OLDEST
+        } else {
+            policy
+        }
+
+    override fun getDroppedReceivedMessages() = receivedMessagesDispatcher?.droppedMessages ?: 0L
+
+    /**
+     * Return a snapshot of the latency stats of the GATT operations of the given [type].
+     */
+    fun getGattOperationStats(type: GattOperation.Type) = gattClient.getOperationStats(type)
+
+    /**
+     * Forget the services, MTU and name cached for every device, see [BleProfile.useProfileCache].
+     */
+    fun clearProfileCache(context: Context) = gattClient.clearProfileCache(context)
+
+    /**
+     * PHYs used for transmitting and receiving, see [GattClient.txPhy].
+     */
+    fun getTxPhy() = gattClient.txPhy
+
+    fun getRxPhy() = gattClient.rxPhy
+
+    /**
+     * Keep the connection in the given priority, or manage it automatically if it is null. See
+     * [GattClient.pinConnectionPriority].
+     */
+    fun setPinnedConnectionPriority(priority: Int?) {
+        if (priority != null) gattClient.pinConnectionPriority(priority)
+        else gattClient.unpinConnectionPriority()
+    }
+
+    override fun setEventMask(eventMask: Int) {
+        gattClient.eventMask = eventMask
+    }
+
+    private fun isSubscribedTo(event: Int) = gattClient.eventMask and event != 0
+
+    override fun isConnected() = gattClient.state.isConnected()
+
+    private fun isReadyToSend(): Boolean {
         // Check that we're actually connected before trying anything
         if (!isConnected()) {
-            return
+            return false
         } else if (gattClient.state.isConfiguring()) {
             Log.d(LOG_TAG, "BLE is still being configured, current state is " + gattClient.state)
-            return
+            return false
         } else if (gattClient.state != GattClient.State.CONFIGURED) {
             Log.w(LOG_TAG, "BLE is not configured yet, current state is " + gattClient.state)
-            return
-        }
-
-        if (message.isNotBlank()) {
-            gattClient.sendMsgToConnectedDevice(message)
+            return false
         }
-    }
 
-    override fun sendMessage(messageBuffer: ByteArray) {
-        sendMessage(String(messageBuffer))
+        return true
     }
 
-    override fun isConnected() = gattClient.state.isConnected()
-
     private fun parseGattStateToAppState(connectionState: GattClient.State) = when(connectionState) {
         GattClient.State.DISCONNECTED -> ConnectionState.DISCONNECTED
         GattClient.State.CONNECTING -> ConnectionState.CONNECTING
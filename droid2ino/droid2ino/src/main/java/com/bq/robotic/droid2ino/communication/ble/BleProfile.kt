@@ -23,6 +23,7 @@
 
 package com.bq.robotic.droid2ino.communication.ble
 
+import android.bluetooth.BluetoothGatt.CONNECTION_PRIORITY_BALANCED
 import java.util.*
 
 /**
@@ -32,7 +33,55 @@ import java.util.*
 data class BleProfile(val customService: UUID?,
                       val customReadCharacteristic: UUID?,
                       val customWriteCharacteristic: UUID?,
-                      val preferredMtu: Int = 512) {
+                      /**
+                       * MTU requested to the device when connecting, on Android 5.0 and later. The
+                       * messages are written in chunks of the negotiated MTU minus 3 bytes.
+                       */
+                      val preferredMtu: Int = 512,
+                      /**
+                       * Write the messages without waiting for the response of the device to each
+                       * chunk, if the write characteristic supports it. Much faster, but the
+                       * device must be able to process the chunks as fast as they arrive.
+                       */
+                      val writeWithoutResponse: Boolean = false,
+                      /**
+                       * Time without sending nor receiving messages after which the connection
+                       * drops from the high priority, used during the setup and the bursts of
+                       * messages, to [idleConnectionPriority]. 0 disables the automatic management,
+                       * keeping the priority chosen by the system. Only on Android 5.0 and later.
+                       */
+                      val highPriorityIdleTimeoutMs: Long = 5000,
+                      /**
+                       * Connection priority used while idle, one of the `CONNECTION_PRIORITY_*`
+                       * constants of [BluetoothGatt].
+                       */
+                      val idleConnectionPriority: Int = CONNECTION_PRIORITY_BALANCED,
+                      /**
+                       * Request the LE 2M PHY once connected and configured, on Android 8.0 and
+                       * later, if the phone supports it. The device may still keep the LE 1M PHY.
+                       */
+                      val preferLe2MPhy: Boolean = true,
+                      /**
+                       * Remember the services, the MTU and the name of each device, so the
+                       * discovery doesn't wait for the MTU negotiation and the name isn't read
+                       * again when reconnecting. The services are still discovered to validate
+                       * them. Disabled by default.
+                       */
+                      val useProfileCache: Boolean = false,
+                      /**
+                       * More characteristics of the custom service the chunks are written to, in
+                       * turns with [customWriteCharacteristic]. If there is any, each chunk starts
+                       * with a 1 byte sequence number, from 0 on each connection and wrapping at
+                       * 256, so the device can put them back in order.
+                       */
+                      val extraWriteCharacteristics: List<UUID> = emptyList(),
+                      /**
+                       * More characteristics of the custom service the device notifies the chunks
+                       * in, as well as [customReadCharacteristic]. If there is any, each notified
+                       * chunk must start with a 1 byte sequence number like the written ones, and
+                       * they are put back in order before decoding the messages.
+                       */
+                      val extraNotifyCharacteristics: List<UUID> = emptyList()) {
     // These 3 UUIDs are generic to all BLE devices, check
     // [https://www.bluetooth.com/specifications/gatt/characteristics] for the full list.
     // For generic access the correspondent short UUID would be 1800, but in Android we need the full UUID:
@@ -45,6 +94,16 @@ data class BleProfile(val customService: UUID?,
      */
     val characteristicConfigDescriptor = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb")
 
+    /**
+     * Whether the written chunks are spread over several characteristics with sequence numbers.
+     */
+    val isWriteStriped get() = extraWriteCharacteristics.isNotEmpty()
+
+    /**
+     * Whether the notified chunks come from several characteristics with sequence numbers.
+     */
+    val isNotifyStriped get() = extraNotifyCharacteristics.isNotEmpty()
+
     /**
      * Obtain a human-readable name for the service given by parameter.
      */
@@ -61,6 +120,8 @@ data class BleProfile(val customService: UUID?,
         deviceNameCharacteristic -> "DEVICE_NAME_CHARACTERISTIC"
         customReadCharacteristic -> "CUSTOM_READ_CHARACTERISTIC"
         customWriteCharacteristic -> "CUSTOM_WRITE_CHARACTERISTIC"
+        in extraWriteCharacteristics -> "EXTRA_WRITE_CHARACTERISTIC"
+        in extraNotifyCharacteristics -> "EXTRA_NOTIFY_CHARACTERISTIC"
         else -> "UNKNOWN_CHARACTERISTIC_UUID"
     }
 
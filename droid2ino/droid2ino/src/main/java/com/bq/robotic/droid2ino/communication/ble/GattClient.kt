@@ -25,19 +25,40 @@ package com.bq.robotic.droid2ino.communication.ble
 
 import android.bluetooth.*
 import android.bluetooth.BluetoothGatt.*
+import android.bluetooth.BluetoothDevice.PHY_LE_1M
 import android.content.Context
 import android.os.Build
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
 import android.support.annotation.RequiresApi
 import android.util.Log
-import com.bq.robotic.droid2ino.utils.GsonValidator
+import com.bq.robotic.droid2ino.communication.BtFrameListener
+import com.bq.robotic.droid2ino.communication.ConnectionTrace
+import com.bq.robotic.droid2ino.communication.framing.ByteArrayPool
+import com.bq.robotic.droid2ino.communication.framing.DelimiterFrameCodec
+import com.bq.robotic.droid2ino.communication.framing.FrameBufferView
+import com.bq.robotic.droid2ino.communication.framing.FrameCodec
+import com.bq.robotic.droid2ino.communication.framing.FrameDecoder
+import com.bq.robotic.droid2ino.communication.framing.JsonFrameCodec
+import com.bq.robotic.droid2ino.communication.framing.PooledByteArray
+import com.bq.robotic.droid2ino.communication.framing.Utf8Encoder
+import com.bq.robotic.droid2ino.utils.Droid2InoConstants
+import java.io.IOException
 import java.util.*
 
-// Delay to correctly enqueue the operations in gatt (if not they will be dropped and nothing will be done)
-private const val GATT_MTU_DELAY_MS = 1000L
-private const val GATT_ENQUEUE_DELAY_MS = 150L
-private const val DEFAULT_MSG_DATA_SIZE = 20 // 20 bytes
+private const val DEFAULT_MTU = 23 // 23 bytes
 private const val MSG_DATA_MARGIN_SIZE = 3 // 3 bytes
-private const val SHOULD_REQUEST_MTU_CHANGE = false
+private const val DEFAULT_MSG_DATA_SIZE = DEFAULT_MTU - MSG_DATA_MARGIN_SIZE
+// Max length of the value of an attribute
+private const val MAX_MSG_DATA_SIZE = 512
+// Delay between chunks written without response while the link is congested, doubled on each
+// congestion and decreased linearly on each successful write
+private const val MIN_WRITE_BACKOFF_MS = 5L
+private const val MAX_WRITE_BACKOFF_MS = 320L
+private const val WRITE_BACKOFF_DECREASE_MS = 5L
+// Times the same chunk is retried when its write can't be requested
+private const val MAX_WRITE_RETRIES = 8
 
 /**
  * This class does all the work for setting up and managing Bluetooth connections with other devices
@@ -132,6 +153,7 @@ class GattClient(private val bleProfile: BleProfile) {
         private set (newState) {
             if (newState == field) return
             field = newState
+            if (ConnectionTrace.isEnabled) ConnectionTrace.record(ConnectionTrace.GATT_STATE_CHANGED, newState.ordinal)
             eventListener?.onStateChanged(newState)
         }
 
@@ -145,13 +167,111 @@ class GattClient(private val bleProfile: BleProfile) {
             eventListener?.onLastRequestStatusChanged(requestStatus)
         }
 
+    /**
+     * [FrameCodec] used to delimit the messages exchanged with the connected device. By default the
+     * messages are JSONs split in several chunks. It will be used from the next connection on.
+     */
+    var frameCodec: FrameCodec = JsonFrameCodec()
+
+    /**
+     * If set, the received messages are delivered to it as raw bytes instead of as Strings to the
+     * [eventListener].
+     */
+    @Volatile var frameListener: BtFrameListener? = null
+
+    /**
+     * Events the listener is subscribed to. The received messages are only decoded to Strings if
+     * [Droid2InoConstants.EVENT_MESSAGE_RECEIVED] is set.
+     */
+    @Volatile var eventMask = Droid2InoConstants.EVENT_ALL
+
     // Reading/writing messages helpers
-    private val messageReceivedBuilder: StringBuilder = StringBuilder()
-    private var messageToSend = mutableListOf<String>()
-    private val deviceNameReceivedBuilder: StringBuilder = StringBuilder()
-    private var msgDataSize = DEFAULT_MSG_DATA_SIZE
+    private var connectionFrameCodec = frameCodec
+    private var messageDecoder = frameCodec.createDecoder()
+    private val frameBufferView = FrameBufferView()
+    // Guards the state of the frame being sent, changed from the thread sending the messages, the
+    // binder thread of the GATT callbacks and the main thread of the timeouts and the backoff
+    private val sendLock = Any()
+    // Frame being sent in chunks and the position of its next chunk
+    private var frameToSend: PooledByteArray? = null
+    private var frameToSendOffset = 0
+    // Incremented for each frame, so the result of a chunk of a replaced frame isn't applied to
+    // the new one
+    private var frameGeneration = 0
+    // Only one chunk is written at a time, the next one waits for its result
+    private var isChunkInFlight = false
+    private var chunkInFlightGeneration = 0
+    // Splits the frames in chunks of the MTU size, the characteristic value is copied when written
+    private val chunker = BleChunker(DEFAULT_MSG_DATA_SIZE)
+    // Striping of the chunks over several characteristics, see [BleProfile.extraWriteCharacteristics]
+    private var writeSequence = 0
+    private var writeStripe = 0
+    private val stripeReassembler = StripeReassembler()
+    // The device name is read as a JSON too, a plain name is a bare value complete with the chunk
+    private val deviceNameDecoder = JsonFrameCodec().createDecoder()
+
+    /**
+     * MTU negotiated with the connected device, see [BleProfile.preferredMtu].
+     */
+    @Volatile var mtu = DEFAULT_MTU
+        private set
 
     private var bluetoothGatt: BluetoothGatt? = null
+    // Resolved once the services are discovered
+    @Volatile private var handles: GattHandles? = null
+
+    // What was learnt from the device in previous connections, see [BleProfile.useProfileCache]
+    private var profileCache: GattProfileCache? = null
+    private var cachedProfile: GattProfileCache.Entry? = null
+    private var deviceAddress: String? = null
+    private var deviceName: String? = null
+
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // Flow control of the chunks written without response, see [BleProfile.writeWithoutResponse]
+    private val writeNextChunkRunnable = Runnable { writePartialMsgToDevice() }
+    private var writeBackoffMs = 0L
+    private var writeRetries = 0
+
+    /**
+     * Number of times the link was congested while writing without response, so the writes were
+     * slowed down.
+     */
+    @Volatile var congestionEvents = 0L
+        private set
+
+    /**
+     * Connection priority last requested to the device, one of the `CONNECTION_PRIORITY_*`
+     * constants of [BluetoothGatt]. Always balanced before Android 5.0.
+     */
+    @Volatile var connectionPriority = CONNECTION_PRIORITY_BALANCED
+        private set
+
+    /**
+     * PHY used for transmitting to the connected device, one of the `PHY_LE_*` constants of
+     * [BluetoothDevice]. Always LE 1M before Android 8.0.
+     */
+    @Volatile var txPhy = PHY_LE_1M
+        private set
+
+    /**
+     * PHY used for receiving from the connected device, see [txPhy].
+     */
+    @Volatile var rxPhy = PHY_LE_1M
+        private set
+
+    // Connection priority set by the application, if any, see [pinConnectionPriority]
+    @Volatile private var pinnedConnectionPriority: Int? = null
+    @Volatile private var lastBurstActivityMs = 0L
+    private val idleConnectionPriorityRunnable = Runnable { onConnectionPriorityIdleTimeout() }
+
+    // Runs the GATT operations one at a time, as Android drops the ones requested while another
+    // one is pending
+    private val operationQueue = GattOperationQueue(object : GattOperationQueue.OnOperationFailedListener {
+        override fun onOperationFailed(operation: GattOperation, isTimeout: Boolean) {
+            onGattOperationFailed(operation, isTimeout)
+        }
+    })
 
     /**
      * Listener used to communicate changes or the result of requests to this gatt client.
@@ -167,24 +287,24 @@ class GattClient(private val bleProfile: BleProfile) {
                 when (newState) {
                     BluetoothProfile.STATE_CONNECTED -> {
                         Log.d(LOG_TAG, "Connected to the GATT server")
+                        operationQueue.gatt = gatt
                         state = State.CONNECTED_NOT_CONFIGURED
 
-                        // Try to request the increase of MTU, if it fails, discover directly the services
-                        if (SHOULD_REQUEST_MTU_CHANGE/* && gatt.requestMtu(PREFERRED_MTU)*/) {
-                            state = State.REQUESTING_MTU
-
-                            // TODO: Check if don't trust in the [onMtuChanged] callback being called
-                            // if the MTU doesn't changes, so we should start discovering services after
-                            // the needed gatt delay
-
-                            // Add delay to correctly enqueue the operations in gatt (if not they will
-                            // be dropped and nothing will be done)
-//                            compositeDisposable.add(Completable.complete()
-//                                .delay(GATT_MTU_DELAY_MS, TimeUnit.MILLISECONDS)
-//                                .subscribe {
-//                                    startServicesDiscovery()
-//                                })
-
+                        // The setup is faster with a short connection interval
+                        val pinnedPriority = pinnedConnectionPriority
+                        if (pinnedPriority != null) requestConnectionPriority(pinnedPriority)
+                        else boostConnectionPriority()
+
+                        // Try to increase the MTU before anything else, so the messages are split
+                        // in fewer chunks. The services are discovered once it is negotiated
+                        val cached = cachedProfile
+                        val requestedMtu = if (cached != null) Math.min(cached.mtu, bleProfile.preferredMtu)
+                                           else bleProfile.preferredMtu
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && requestedMtu > DEFAULT_MTU) {
+                            operationQueue.enqueue(GattOperation.RequestMtu(requestedMtu))
+                            // The device accepted that MTU last time, so the discovery doesn't wait for it
+                            if (cached != null) startServicesDiscovery()
+                            else state = State.REQUESTING_MTU
                         } else {
                             startServicesDiscovery()
                         }
@@ -206,54 +326,78 @@ class GattClient(private val bleProfile: BleProfile) {
 
             override fun onMtuChanged(gatt: BluetoothGatt, mtu: Int, status: Int) {
                 Log.d(LOG_TAG, "Mtu changed = $mtu")
-                msgDataSize = mtu - MSG_DATA_MARGIN_SIZE
-                startServicesDiscovery()
+                operationQueue.onOperationCompleted(GattOperation.Type.REQUEST_MTU, status)
+                if (status == BluetoothGatt.GATT_SUCCESS) useMtu(mtu)
+                if (state == State.REQUESTING_MTU) startServicesDiscovery()
+            }
+
+            override fun onPhyUpdate(gatt: BluetoothGatt, txPhy: Int, rxPhy: Int, status: Int) {
+                operationQueue.onOperationCompleted(GattOperation.Type.SET_PREFERRED_PHY, status)
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(LOG_TAG, "Error updating the PHY: ${gattErrorToString(status)}")
+                    return
+                }
+
+                Log.d(LOG_TAG, "PHY updated, tx = $txPhy, rx = $rxPhy")
+                this@GattClient.txPhy = txPhy
+                this@GattClient.rxPhy = rxPhy
+                if (ConnectionTrace.isEnabled) ConnectionTrace.record(ConnectionTrace.GATT_PHY_UPDATED, txPhy, rxPhy)
             }
 
             override fun onServicesDiscovered(gatt: BluetoothGatt, status: Int) {
-                Log.d(LOG_TAG, "onServicesDiscovered called")
+                operationQueue.onOperationCompleted(GattOperation.Type.DISCOVER_SERVICES, status)
 
                 if (status != BluetoothGatt.GATT_SUCCESS) {
                     Log.e(LOG_TAG, "Error while discovering services: ${gattErrorToString(status)}")
                     state = State.ERROR_DISCOVERING_SERVICES
+                    invalidateCachedProfile()
                     return
                 }
 
+                if (bleProfile.customService == null) return
+
                 // Sometimes the service is null
-                bleProfile.customService?.let {
-                    val service = gatt.getService(it)
-
-                    if (service == null) {
-                        Log.e(LOG_TAG, "Error discovering custom service: ${gattErrorToString(status)}")
-                        state = State.ERROR_DISCOVERING_SERVICES
-                        return
-                    } else {
-                        Log.d(LOG_TAG, "Custom service discovered")
-                    }
+                val resolvedHandles = GattHandles.resolve(gatt, bleProfile)
+                if (resolvedHandles == null) {
+                    Log.e(LOG_TAG, "Error discovering custom service: ${gattErrorToString(status)}")
+                    state = State.ERROR_DISCOVERING_SERVICES
+                    invalidateCachedProfile()
+                    return
+                } else {
+                    Log.d(LOG_TAG, "Custom service discovered")
+                }
 
-                    // Enable notifications in the custom characteristic
-                    bleProfile.customReadCharacteristic?.let {
-                        state = State.ENABLING_NOTIFICATIONS
-                        enableCharacteristicNotifications(gatt, service, bleProfile.customReadCharacteristic,
-                            bleProfile.characteristicConfigDescriptor)
-                    }
+                // The device expects every chunk to carry its sequence number, so a missing stripe
+                // can't fall back to plain chunks
+                if (bleProfile.isWriteStriped
+                    && resolvedHandles.writeCharacteristics.size != bleProfile.extraWriteCharacteristics.size + 1) {
+                    Log.e(LOG_TAG, "Not all the striped write characteristics were found in the custom service")
+                    state = State.ERROR_DISCOVERING_SERVICES
+                    invalidateCachedProfile()
+                    return
                 }
 
-                // TODO: Check if we trust in the [onDescriptorWrite] callback being called or if we
-                // try to read anyway here
-//                    Timber.i("Requesting a read operation in the wifi list characteristic")
-//                    compositeDisposable.add(Completable.complete()
-//                        .delay(GATT_ENQUEUE_DELAY_MS * 2, TimeUnit.MILLISECONDS)
-//                        .subscribe {
-//                            state = State.REQUESTING_WIFI_LIST)
-//                            gatt.readCharacteristic(it.getCharacteristic(WIFI_LIST_CHARACTERISTIC))
-//                        })
+                // The chunks are tagged with their sequence number only if they are striped
+                synchronized(sendLock) {
+                    chunker.headerSize = if (resolvedHandles.writeCharacteristics.size > 1) 1 else 0
+                }
+                handles = resolvedHandles
 
+                if (cachedProfile?.matches(resolvedHandles) == false) {
+                    Log.w(LOG_TAG, "The services of the device changed since the last connection")
+                    invalidateCachedProfile()
+                }
+
+                // Enable notifications in the custom characteristic
+                if (bleProfile.customReadCharacteristic != null) {
+                    state = State.ENABLING_NOTIFICATIONS
+                    enableCharacteristicNotifications(gatt, resolvedHandles)
+                }
             }
 
             override fun onCharacteristicRead(gatt: BluetoothGatt, characteristic: BluetoothGattCharacteristic,
                                               status: Int) {
-                Log.d(LOG_TAG, "onCharacteristicRead called")
+                operationQueue.onOperationCompleted(GattOperation.Type.READ_CHARACTERISTIC, status, characteristic)
 
                 if (status != BluetoothGatt.GATT_SUCCESS) {
                     when (characteristic.uuid) {
@@ -270,13 +414,13 @@ class GattClient(private val bleProfile: BleProfile) {
                 when (characteristic.uuid) {
                     null -> { }  // Do nothing
                     bleProfile.customReadCharacteristic -> {
-                        // Clear the builder for the next messages
-                        messageReceivedBuilder.setLength(0)
+                        // Discard any partial message for the next messages
+                        messageDecoder.reset()
                         readCustomCharacteristic(characteristic)
                     }
 
                     bleProfile.deviceNameCharacteristic -> {
-                        deviceNameReceivedBuilder.setLength(0)
+                        deviceNameDecoder.reset()
                         readDeviceNameCharacteristic(characteristic)
                     }
                     else -> { } // Do nothing
@@ -284,48 +428,47 @@ class GattClient(private val bleProfile: BleProfile) {
             }
 
             override fun onCharacteristicChanged(gatt: BluetoothGatt, characteristic: BluetoothGattCharacteristic) {
-                Log.v(LOG_TAG, "Characteristic ${bleProfile.getCharacteristicNameFromUuid(characteristic.uuid)} updated")
+                if (ConnectionTrace.isEnabled)
+                    ConnectionTrace.record(ConnectionTrace.GATT_NOTIFICATION, characteristic.value?.size ?: 0)
                 when (characteristic.uuid) {
                     null -> { }  // Do nothing
-                    bleProfile.customReadCharacteristic -> readCustomCharacteristic(characteristic)
+                    bleProfile.customReadCharacteristic -> onCustomCharacteristicNotified(characteristic)
                     bleProfile.deviceNameCharacteristic -> readDeviceNameCharacteristic(characteristic)
-                    else -> { } // Do nothing
+                    else -> if (handles?.isNotifyCharacteristic(characteristic) == true) onCustomCharacteristicNotified(characteristic)
                 }
             }
 
             override fun onCharacteristicWrite(gatt: BluetoothGatt, characteristic: BluetoothGattCharacteristic,
                                                status: Int) {
-                Log.d(LOG_TAG, "onCharacteristicWrite called")
+                // The late callback of a chunk that timed out isn't the result of the current one
+                if (!operationQueue.onOperationCompleted(GattOperation.Type.WRITE_CHARACTERISTIC, status, characteristic)) return
 
-                if (status != BluetoothGatt.GATT_SUCCESS) {
+                val isCustomWriteCharacteristic = handles?.isWriteCharacteristic(characteristic) == true
+                if (status != BluetoothGatt.GATT_SUCCESS && status != GATT_CONNECTION_CONGESTED) {
                     Log.e(LOG_TAG, "Error writing on the characteristic " +
                                    "${bleProfile.getCharacteristicNameFromUuid(characteristic.uuid)} " +
                                    "with error: ${gattErrorToString(status)}")
-
-                    bleProfile.customWriteCharacteristic?.let {
-                        if (characteristic.uuid == it)
-                            lastRequestStatus = RequestStatus.ERROR_WRITING_CUSTOM_CHARACTERISTIC
-                    }
-                    return
                 }
 
-                when (characteristic.uuid) {
-                    null -> { }  // Do nothing
-                    bleProfile.customWriteCharacteristic -> {
-                        Log.d(LOG_TAG, "Message was sent")
-                        writePartialMsgToDevice(messageToSend)
-                    }
-                }
+                if (isCustomWriteCharacteristic) onChunkWritten(status, characteristic.writeType)
             }
 
             override fun onDescriptorWrite(gatt: BluetoothGatt, descriptor: BluetoothGattDescriptor, status: Int) {
-                Log.d(LOG_TAG, "onDescriptorWrite called")
+                operationQueue.onOperationCompleted(GattOperation.Type.WRITE_DESCRIPTOR, status, descriptor)
 
                 // Result of this client write on a descriptor to the server
                 if (status != BluetoothGatt.GATT_SUCCESS) {
                     Log.e(LOG_TAG, "Error writing on the descriptor " +
                                    "${bleProfile.getDescriptorNameFromUuid(descriptor.uuid)} " +
                                    "with error: ${gattErrorToString(status)}")
+                    invalidateCachedProfile()
+                    return
+                }
+
+                // The extra notify characteristics are enabled after the custom one
+                val notifiedUuid: UUID? = descriptor.characteristic?.uuid
+                if (notifiedUuid != bleProfile.customReadCharacteristic) {
+                    Log.d(LOG_TAG, "Notifications on ${notifiedUuid?.let { bleProfile.getCharacteristicNameFromUuid(it) }} enabled")
                     return
                 }
 
@@ -333,13 +476,30 @@ class GattClient(private val bleProfile: BleProfile) {
                     null -> { }  // Do nothing
                     bleProfile.characteristicConfigDescriptor -> {
                         Log.d(LOG_TAG, "Notifications on wifi list characteristic enabled")
-                        state = State.CONFIGURED
+                        if (state != State.CONFIGURED) {
+                            state = State.CONFIGURED
+                            requestPreferredPhy()
+                        }
                         areNotificationsEnabled = true
 
-                        Log.d(LOG_TAG, "Requesting a read operation in the wifi list characteristic")
-                        lastRequestStatus = RequestStatus.REQUESTING_DEVICE_NAME_CHARACTERISTIC_VALUE
-                        gatt.readCharacteristic(gatt.getService(bleProfile.genericAccessService)
-                            .getCharacteristic(bleProfile.deviceNameCharacteristic))
+                        // The name of a known device isn't read again
+                        val cachedDeviceName = cachedProfile?.deviceName
+                        if (cachedDeviceName != null) {
+                            Log.d(LOG_TAG, "Using the cached name of the device")
+                            onDeviceNameObtained(cachedDeviceName)
+                            saveProfileToCache()
+                            return
+                        }
+                        saveProfileToCache()
+
+                        Log.d(LOG_TAG, "Requesting a read operation in the device name characteristic")
+                        val deviceNameCharacteristic = handles?.deviceNameCharacteristic
+                        if (deviceNameCharacteristic != null) {
+                            lastRequestStatus = RequestStatus.REQUESTING_DEVICE_NAME_CHARACTERISTIC_VALUE
+                            operationQueue.enqueue(GattOperation.ReadCharacteristic(deviceNameCharacteristic))
+                        } else {
+                            lastRequestStatus = RequestStatus.ERROR_REQUESTING_DEVICE_NAME_CHARACTERISTIC
+                        }
                     }
                 }
             }
@@ -352,8 +512,39 @@ class GattClient(private val bleProfile: BleProfile) {
      */
     fun startClient(context: Context, bluetoothDevice: BluetoothDevice) {
         state = State.CONNECTING
+        connectionFrameCodec = frameCodec
+        messageDecoder = frameCodec.createDecoder()
+        // The binary frames are split anywhere
+        synchronized(sendLock) {
+            chunker.keepUtf8Sequences = frameCodec is JsonFrameCodec || frameCodec is DelimiterFrameCodec
+            chunker.headerSize = 0
+            writeSequence = 0
+            writeStripe = 0
+        }
+        stripeReassembler.reset()
+        useMtu(DEFAULT_MTU)
+        txPhy = PHY_LE_1M
+        rxPhy = PHY_LE_1M
+
+        deviceAddress = bluetoothDevice.address
+        deviceName = null
+        cachedProfile = null
+        if (bleProfile.useProfileCache) {
+            val cache = profileCache ?: GattProfileCache(context).also { profileCache = it }
+            cachedProfile = cache.get(bluetoothDevice.address)?.takeIf {
+                it.serviceUuid == bleProfile.customService
+                && it.readCharacteristicUuid == bleProfile.customReadCharacteristic
+                && it.writeCharacteristicUuid == bleProfile.customWriteCharacteristic
+            }
+        }
 
-        bluetoothGatt = bluetoothDevice.connectGatt(context, false, gattCallback)
+        bluetoothGatt = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // Dual mode devices could be connected through BR/EDR otherwise
+            bluetoothDevice.connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE)
+        } else {
+            bluetoothDevice.connectGatt(context, false, gattCallback)
+        }
+        operationQueue.gatt = bluetoothGatt
         if (bluetoothGatt == null)
             Log.e(LOG_TAG, "Unable to create the GATT client")
 
@@ -368,7 +559,99 @@ class GattClient(private val bleProfile: BleProfile) {
             Log.d(LOG_TAG, "GATT client was closed")
         }
         bluetoothGatt = null
+        handles = null
+        mainHandler.removeCallbacks(idleConnectionPriorityRunnable)
+        connectionPriority = CONNECTION_PRIORITY_BALANCED
+        operationQueue.clear()
+        operationQueue.gatt = null
         state = State.DISCONNECTED
+
+        synchronized(sendLock) {
+            mainHandler.removeCallbacks(writeNextChunkRunnable)
+            writeBackoffMs = 0L
+            writeRetries = 0
+            isChunkInFlight = false
+            discardFrameToSend(IOException("The GATT client was closed"))
+        }
+    }
+
+    /**
+     * Use the given MTU, sending chunks as big as it allows.
+     */
+    private fun useMtu(newMtu: Int) {
+        mtu = newMtu
+        synchronized(sendLock) {
+            chunker.maxChunkSize = Math.min(newMtu - MSG_DATA_MARGIN_SIZE, MAX_MSG_DATA_SIZE)
+        }
+    }
+
+    /**
+     * Keep the connection in the given priority, one of the `CONNECTION_PRIORITY_*` constants of
+     * [BluetoothGatt], instead of managing it automatically. It is kept for the next connections
+     * until [unpinConnectionPriority] is called. Ignored before Android 5.0.
+     */
+    fun pinConnectionPriority(priority: Int) {
+        pinnedConnectionPriority = priority
+        mainHandler.removeCallbacks(idleConnectionPriorityRunnable)
+        if (bluetoothGatt != null) requestConnectionPriority(priority)
+    }
+
+    /**
+     * Manage the connection priority automatically again, see [BleProfile.highPriorityIdleTimeoutMs].
+     */
+    fun unpinConnectionPriority() {
+        pinnedConnectionPriority = null
+        if (bluetoothGatt != null) boostConnectionPriority()
+    }
+
+    /**
+     * Switch to the high connection priority, which shortens the connection interval, while there
+     * is traffic. It drops to [BleProfile.idleConnectionPriority] once the link is idle. Nothing is
+     * done before Android 5.0, where the priority can't be requested.
+     */
+    private fun boostConnectionPriority() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return
+        if (pinnedConnectionPriority != null || bleProfile.highPriorityIdleTimeoutMs <= 0) return
+
+        lastBurstActivityMs = SystemClock.uptimeMillis()
+        if (connectionPriority != CONNECTION_PRIORITY_HIGH) {
+            requestConnectionPriority(CONNECTION_PRIORITY_HIGH)
+            mainHandler.removeCallbacks(idleConnectionPriorityRunnable)
+            mainHandler.postDelayed(idleConnectionPriorityRunnable, bleProfile.highPriorityIdleTimeoutMs)
+        }
+    }
+
+    private fun onConnectionPriorityIdleTimeout() {
+        if (pinnedConnectionPriority != null || bluetoothGatt == null) return
+
+        // Checking the last activity here is cheaper than rescheduling on every message
+        val idleMs = SystemClock.uptimeMillis() - lastBurstActivityMs
+        if (idleMs < bleProfile.highPriorityIdleTimeoutMs) {
+            mainHandler.postDelayed(idleConnectionPriorityRunnable, bleProfile.highPriorityIdleTimeoutMs - idleMs)
+            return
+        }
+
+        requestConnectionPriority(bleProfile.idleConnectionPriority)
+    }
+
+    private fun requestConnectionPriority(priority: Int) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return
+
+        Log.d(LOG_TAG, "Requesting the connection priority $priority")
+        connectionPriority = priority
+        operationQueue.enqueue(GattOperation.RequestConnectionPriority(priority))
+    }
+
+    /**
+     * Request the LE 2M PHY, twice the raw throughput, if both sides support it. It is requested
+     * once the connection is configured, so it doesn't delay the MTU exchange nor the discovery.
+     */
+    private fun requestPreferredPhy() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bleProfile.preferLe2MPhy
+            && BluetoothAdapter.getDefaultAdapter()?.isLe2MPhySupported == true) {
+            operationQueue.enqueue(GattOperation.SetPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK,
+                BluetoothDevice.PHY_LE_2M_MASK))
+        }
     }
 
     private fun startServicesDiscovery() {
@@ -377,15 +660,57 @@ class GattClient(private val bleProfile: BleProfile) {
             return
         }
 
-        state = if (bluetoothGatt?.discoverServices() == true) {
-            Log.d(LOG_TAG, "Start connected device services discovery")
-            State.DISCOVERING_SERVICES
-        } else {
-            Log.e(LOG_TAG, "Error trying to discover the device's services")
-            State.ERROR_DISCOVERING_SERVICES
+        Log.d(LOG_TAG, "Start connected device services discovery")
+        state = State.DISCOVERING_SERVICES
+        operationQueue.enqueue(GattOperation.DiscoverServices())
+    }
+
+    /**
+     * Called when a GATT operation couldn't be requested or its callback didn't arrive in time.
+     */
+    private fun onGattOperationFailed(operation: GattOperation, isTimeout: Boolean) {
+        when (operation) {
+            is GattOperation.DiscoverServices -> {
+                Log.e(LOG_TAG, "Error trying to discover the device's services")
+                state = State.ERROR_DISCOVERING_SERVICES
+            }
+
+            is GattOperation.ReadCharacteristic -> when (operation.characteristic.uuid) {
+                bleProfile.customReadCharacteristic ->
+                    lastRequestStatus = if (isTimeout) RequestStatus.ERROR_READING_CUSTOM_CHARACTERISTIC
+                                        else RequestStatus.ERROR_REQUESTING_CUSTOM_READ_CHARACTERISTIC
+                bleProfile.deviceNameCharacteristic ->
+                    lastRequestStatus = if (isTimeout) RequestStatus.ERROR_READING_DEVICE_NAME_CHARACTERISTIC
+                                        else RequestStatus.ERROR_REQUESTING_DEVICE_NAME_CHARACTERISTIC
+            }
+
+            is GattOperation.WriteCharacteristic -> {
+                if (handles?.isWriteCharacteristic(operation.characteristic) == true) onChunkFailed(operation, isTimeout)
+            }
+
+            is GattOperation.WriteDescriptor -> {
+                Log.e(LOG_TAG, "Error writing on the descriptor " +
+                               bleProfile.getDescriptorNameFromUuid(operation.descriptor.uuid))
+                invalidateCachedProfile()
+            }
+
+            is GattOperation.RequestMtu -> {
+                // Go on with the default MTU
+                Log.w(LOG_TAG, "The MTU couldn't be changed, using $mtu")
+                if (state == State.REQUESTING_MTU) startServicesDiscovery()
+            }
+
+            is GattOperation.RequestConnectionPriority -> Log.w(LOG_TAG, "The connection priority couldn't be changed")
+
+            is GattOperation.SetPreferredPhy -> Log.w(LOG_TAG, "The PHY couldn't be changed, using tx = $txPhy, rx = $rxPhy")
         }
     }
 
+    /**
+     * Return a snapshot of the latency stats of the GATT operations of the given [type].
+     */
+    fun getOperationStats(type: GattOperation.Type) = operationQueue.getStats(type)
+
     /**
      * In order to enable the notifications on a characteristic, we have to write in its
      * configuration descriptor, not only enabling the characteristicNotification.
@@ -393,78 +718,132 @@ class GattClient(private val bleProfile: BleProfile) {
      * 'false' when trying to write in the notifications descriptor but after that, the callback
      * that the notification were enabled correctly is called -_-
      */
-    private fun enableCharacteristicNotifications(gatt: BluetoothGatt, service: BluetoothGattService,
-                                                  characteristicUuid: UUID, configDescriptor: UUID): Boolean {
-        val characteristic = service.getCharacteristic(characteristicUuid)
-        characteristic?.let {
+    private fun enableCharacteristicNotifications(gatt: BluetoothGatt, handles: GattHandles): Boolean {
+        handles.readCharacteristic?.let {
             gatt.setCharacteristicNotification(it, true)
 
-            val descriptor = characteristic.getDescriptor(configDescriptor)
-            descriptor?.let {
+            handles.configDescriptor?.let {
                 Log.d(LOG_TAG, "Preparing to write in the notification descriptor")
-                it.value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
-                gatt.writeDescriptor(it)
+                operationQueue.enqueue(GattOperation.WriteDescriptor(it, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE))
+            }
+        }
+
+        for (characteristic in handles.extraNotifyCharacteristics) {
+            gatt.setCharacteristicNotification(characteristic, true)
+            characteristic.getDescriptor(bleProfile.characteristicConfigDescriptor)?.let {
+                operationQueue.enqueue(GattOperation.WriteDescriptor(it, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE))
             }
         }
 
         return false
     }
 
-    private fun readCustomCharacteristic(characteristic: BluetoothGattCharacteristic) {
-        val json = characteristic.getStringValue(0)
-        Log.d(LOG_TAG, "Custom characteristic message obtained: $json")
+    private val messageDecodedListener = object : FrameDecoder.OnFrameDecodedListener {
+        override fun onFrameDecoded(frame: ByteArray, offset: Int, length: Int) {
+            if (ConnectionTrace.isEnabled) ConnectionTrace.record(ConnectionTrace.FRAME_EMITTED, length)
 
-        if (json.isNotBlank()) {
-            messageReceivedBuilder.append(json)
+            frameListener?.let {
+                it.onFrameReceived(frameBufferView.wrap(frame, offset, length))
+                return
+            }
 
-            if (GsonValidator.isJsonValid(messageReceivedBuilder.toString())) {
-                Log.d(LOG_TAG, "Message received = $messageReceivedBuilder")
-                lastRequestStatus = RequestStatus.MESSAGE_RECEIVED_FROM_DEVICE
-                eventListener?.onMessageReceived(messageReceivedBuilder.toString())
+            // Don't decode the messages nobody listens to
+            if (eventMask and Droid2InoConstants.EVENT_MESSAGE_RECEIVED == 0) return
 
-                // Clear the builder for the next messages
-                messageReceivedBuilder.setLength(0)
-            }
+            val message = String(frame, offset, length)
+            lastRequestStatus = RequestStatus.MESSAGE_RECEIVED_FROM_DEVICE
+            eventListener?.onMessageReceived(message)
         }
     }
 
-    private fun readDeviceNameCharacteristic(characteristic: BluetoothGattCharacteristic) {
-        val readOffset = 0
-        val json = characteristic.getStringValue(readOffset)
-        Log.d(LOG_TAG, "Device data obtained: $json")
+    private fun readCustomCharacteristic(characteristic: BluetoothGattCharacteristic) {
+        val chunk = characteristic.value ?: return
+        messageDecoder.decode(chunk, 0, chunk.size, messageDecodedListener)
+    }
 
-        if (json.isBlank()) {
-            Log.w(LOG_TAG, "Device data chunk received is null or empty")
-            return
+    private val stripedChunkListener = object : StripeReassembler.OnChunkReadyListener {
+        override fun onChunkReady(chunk: ByteArray, offset: Int, length: Int) {
+            messageDecoder.decode(chunk, offset, length, messageDecodedListener)
         }
+    }
 
-        deviceNameReceivedBuilder.append(json)
-        if (GsonValidator.isJsonValid(deviceNameReceivedBuilder.toString())) {
+    private fun onCustomCharacteristicNotified(characteristic: BluetoothGattCharacteristic) {
+        boostConnectionPriority()
+        if (bleProfile.isNotifyStriped) {
+            stripeReassembler.accept(characteristic.value ?: return, stripedChunkListener)
+        } else {
+            readCustomCharacteristic(characteristic)
+        }
+    }
 
-            Log.d(LOG_TAG, "Device name received = $deviceNameReceivedBuilder")
-            lastRequestStatus = RequestStatus.MESSAGE_RECEIVED_FROM_DEVICE
-            eventListener?.onDeviceNameObtained(deviceNameReceivedBuilder.toString())
+    private val deviceNameDecodedListener = object : FrameDecoder.OnFrameDecodedListener {
+        override fun onFrameDecoded(frame: ByteArray, offset: Int, length: Int) {
+            val deviceName = String(frame, offset, length)
+            Log.d(LOG_TAG, "Device name received = $deviceName")
+            onDeviceNameObtained(deviceName)
+            saveProfileToCache()
+        }
+    }
+
+    private fun onDeviceNameObtained(deviceName: String) {
+        this.deviceName = deviceName
+        lastRequestStatus = RequestStatus.MESSAGE_RECEIVED_FROM_DEVICE
+        eventListener?.onDeviceNameObtained(deviceName)
 
-            lastRequestStatus = RequestStatus.DEVICE_NAME_RECEIVED
+        lastRequestStatus = RequestStatus.DEVICE_NAME_RECEIVED
+    }
 
-            // Clear the builder for the next messages
-            deviceNameReceivedBuilder.setLength(0)
+    /**
+     * Store the layout, the MTU and the name of the connected device for the next connections.
+     */
+    private fun saveProfileToCache() {
+        if (!bleProfile.useProfileCache) return
+        val cache = profileCache ?: return
+        val address = deviceAddress ?: return
+        val currentHandles = handles ?: return
+
+        val entry = GattProfileCache.Entry.from(currentHandles, mtu, deviceName)
+        if (entry != cachedProfile) {
+            cache.put(address, entry)
+            cachedProfile = entry
         }
     }
 
     /**
-     * Request reading in the custom read characteristic.
+     * Forget what was learnt from the connected device, as it didn't match what was found.
      */
-    fun requestLastMsgFromConnectedDevice() {
-        var customCharacteristic: BluetoothGattCharacteristic? = null
-        if (bleProfile.customService != null && bleProfile.customReadCharacteristic != null) {
-            customCharacteristic = bluetoothGatt?.getService(bleProfile.customService)
-                ?.getCharacteristic(bleProfile.customReadCharacteristic)
+    private fun invalidateCachedProfile() {
+        if (cachedProfile == null) return
+        cachedProfile = null
+        deviceAddress?.let { profileCache?.invalidate(it) }
+    }
+
+    /**
+     * Forget what was learnt from all the devices in previous connections.
+     */
+    fun clearProfileCache(context: Context) {
+        (profileCache ?: GattProfileCache(context).also { profileCache = it }).clear()
+        cachedProfile = null
+    }
+
+    private fun readDeviceNameCharacteristic(characteristic: BluetoothGattCharacteristic) {
+        val chunk = characteristic.value
+        if (chunk == null || chunk.isEmpty()) {
+            Log.w(LOG_TAG, "Device data chunk received is null or empty")
+            return
         }
 
+        deviceNameDecoder.decode(chunk, 0, chunk.size, deviceNameDecodedListener)
+    }
+
+    /**
+     * Request reading in the custom read characteristic.
+     */
+    fun requestLastMsgFromConnectedDevice() {
+        val customCharacteristic = handles?.readCharacteristic
         if (customCharacteristic != null) {
             lastRequestStatus = RequestStatus.REQUESTING_CUSTOM_CHARACTERISTIC_VALUE
-            bluetoothGatt?.readCharacteristic(customCharacteristic)
+            operationQueue.enqueue(GattOperation.ReadCharacteristic(customCharacteristic))
         } else {
             lastRequestStatus = RequestStatus.ERROR_REQUESTING_CUSTOM_READ_CHARACTERISTIC
             // TODO: Use a more concrete error for each case, service == null or characteristic == null etc
@@ -475,41 +854,179 @@ class GattClient(private val bleProfile: BleProfile) {
     /**
      * Send the message to the connected device by writing in a dedicated gatt service characteristic.
      */
-    fun sendMsgToConnectedDevice(json: String) {
+    fun sendMsgToConnectedDevice(json: CharSequence) {
+        val message = ByteArrayPool.SHARED.acquire()
+        Utf8Encoder.encode(json, message)
+        message.tag = json
+        sendMsgToConnectedDevice(message)
+    }
+
+    /**
+     * Send the message to the connected device by writing in a dedicated gatt service characteristic.
+     * The message is released once it is encoded, so it mustn't be used after calling this method.
+     */
+    fun sendMsgToConnectedDevice(message: PooledByteArray) {
         lastRequestStatus = RequestStatus.SENDING_MESSAGE_TO_DEVICE
+        boostConnectionPriority()
+
+        val frame = ByteArrayPool.SHARED.acquire()
+        connectionFrameCodec.encode(message.array, 0, message.length, frame)
+        frame.sendHandle = message.sendHandle
+        message.sendHandle = null
+        message.release()
+
+        synchronized(sendLock) {
+            // As before, a message that wasn't completely sent yet is replaced by the new one
+            frameToSend?.release()
+            frameToSend = frame
+            frameToSendOffset = 0
+            frameGeneration++
+            writePartialMsgToDevice()
+        }
+    }
 
-        // Split the message in a list of packets of the mtu size
-        messageToSend = json.chunked(msgDataSize).toMutableList()
-        writePartialMsgToDevice(messageToSend)
+    /**
+     * Write the next chunk of the frame being sent, of the mtu size at most, unless a chunk is
+     * already being written.
+     */
+    private fun writePartialMsgToDevice(): Unit = synchronized(sendLock) {
+        val frame = frameToSend ?: return
+        if (isChunkInFlight) return
+
+        if (writeBackoffMs > 0 && frameToSendOffset < frame.length) {
+            // Give time to the congested link to transmit the previous chunks
+            mainHandler.removeCallbacks(writeNextChunkRunnable)
+            mainHandler.postDelayed(writeNextChunkRunnable, writeBackoffMs)
+            return
+        }
+
+        writeChunk(frame)
     }
 
-    private fun writePartialMsgToDevice(msgChunkedList: MutableList<String>) {
-        if (msgChunkedList.isEmpty()) {
-            Log.v(LOG_TAG, "All the message was already sent to the connected device")
-            lastRequestStatus = RequestStatus.MESSAGE_SENT_TO_DEVICE
+    /**
+     * Called from the GATT callback with the result of the chunk being written.
+     */
+    private fun onChunkWritten(status: Int, writeType: Int): Unit = synchronized(sendLock) {
+        if (!isChunkInFlight) return
+        isChunkInFlight = false
+        // The frame was replaced meanwhile, the new one is started from its first chunk
+        if (chunkInFlightGeneration != frameGeneration) {
+            writePartialMsgToDevice()
             return
         }
 
-        var customCharacteristic: BluetoothGattCharacteristic? = null
-        if (bleProfile.customService != null && bleProfile.customWriteCharacteristic != null) {
-            customCharacteristic = bluetoothGatt?.getService(bleProfile.customService)
-                ?.getCharacteristic(bleProfile.customWriteCharacteristic)
+        when {
+            // The chunk was accepted, but the link can't keep up with the writes without response
+            status == GATT_CONNECTION_CONGESTED && writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ->
+                onWriteCongestion()
+
+            status != BluetoothGatt.GATT_SUCCESS -> {
+                discardFrameToSend(IOException("Error writing the message: ${gattErrorToString(status)}"))
+                lastRequestStatus = RequestStatus.ERROR_WRITING_CUSTOM_CHARACTERISTIC
+                return
+            }
+
+            else -> {
+                writeRetries = 0
+                writeBackoffMs = Math.max(writeBackoffMs - WRITE_BACKOFF_DECREASE_MS, 0)
+            }
         }
 
-        if (customCharacteristic != null) {
-            // Retrieve and remove the next chunk of data to send
-            val nextChunk = msgChunkedList.removeAt(0)
+        writePartialMsgToDevice()
+    }
+
+    /**
+     * Called when the write of the chunk couldn't be requested or its callback never arrived.
+     */
+    private fun onChunkFailed(operation: GattOperation.WriteCharacteristic, isTimeout: Boolean): Unit = synchronized(sendLock) {
+        if (!isChunkInFlight) return
+        isChunkInFlight = false
+        if (chunkInFlightGeneration != frameGeneration) {
+            writePartialMsgToDevice()
+            return
+        }
+
+        if (!isTimeout && operation.writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+            && frameToSend != null && writeRetries++ < MAX_WRITE_RETRIES) {
+            // The buffer of the stack is full, retry the same chunk later
+            frameToSendOffset -= operation.value.size - chunker.headerSize
+            // Rewind the sequence and the stripe too, so the chunk is written again with its
+            // sequence number on its characteristic
+            val stripes = handles?.writeCharacteristics?.size ?: 1
+            if (chunker.headerSize > 0) {
+                writeSequence = (writeSequence - 1) and 0xFF
+                writeStripe = (writeStripe - 1 + stripes) % stripes
+            }
+            onWriteCongestion()
+            writePartialMsgToDevice()
+        } else {
+            discardFrameToSend(IOException("The ${if (isTimeout) "write timed out" else "write couldn't be requested"}"))
+            lastRequestStatus = if (isTimeout) RequestStatus.ERROR_WRITING_CUSTOM_CHARACTERISTIC
+                                else RequestStatus.ERROR_REQUESTING_CUSTOM_WRITE_CHARACTERISTIC
+        }
+    }
+
+    private fun writeChunk(frame: PooledByteArray) {
+        if (frameToSendOffset >= frame.length) {
+            // The write of the last chunk was confirmed
+            frame.onSent()
+            frame.release()
+            frameToSend = null
+            lastRequestStatus = RequestStatus.MESSAGE_SENT_TO_DEVICE
+            return
+        }
+
+        val currentHandles = handles
+        if (currentHandles != null && currentHandles.writeCharacteristics.isNotEmpty()) {
+            // Copy the next chunk of data to send
+            val chunkSize = chunker.nextChunkSize(frame.array, frameToSendOffset, frame.length)
+            val nextChunk = chunker.copyChunk(frame.array, frameToSendOffset, chunkSize)
+            frameToSendOffset += chunkSize
+
+            // The striped chunks are written in turns, tagged with their sequence number
+            val customCharacteristic = currentHandles.writeCharacteristics[writeStripe]
+            if (chunker.headerSize > 0) {
+                nextChunk[0] = writeSequence.toByte()
+                writeSequence = (writeSequence + 1) and 0xFF
+                writeStripe = (writeStripe + 1) % currentHandles.writeCharacteristics.size
+            }
 
-            customCharacteristic.setValue(nextChunk)
-            bluetoothGatt!!.writeCharacteristic(customCharacteristic)
+            // Only one chunk is pending at a time, so the reused chunk isn't modified until the
+            // operation is run
+            isChunkInFlight = true
+            chunkInFlightGeneration = frameGeneration
+            operationQueue.enqueue(GattOperation.WriteCharacteristic(customCharacteristic, nextChunk,
+                currentHandles.writeType))
 
         } else {
+            discardFrameToSend(IOException("The custom write characteristic isn't available"))
             lastRequestStatus = RequestStatus.ERROR_REQUESTING_CUSTOM_WRITE_CHARACTERISTIC
             // TODO: Use a more concrete error for each case, service == null or characteristic == null etc
             Log.e(LOG_TAG, "Error sending the message to the connected device")
         }
     }
 
+    /**
+     * Slow down the writes without response, doubling the delay between chunks. Called with the
+     * send lock held.
+     */
+    private fun onWriteCongestion() {
+        congestionEvents++
+        writeBackoffMs = Math.min(Math.max(writeBackoffMs * 2, MIN_WRITE_BACKOFF_MS), MAX_WRITE_BACKOFF_MS)
+        Log.w(LOG_TAG, "BLE link congested, writing a chunk every $writeBackoffMs ms")
+    }
+
+    /**
+     * Stop sending the current frame, if any, failing its send handle with the given [cause].
+     */
+    private fun discardFrameToSend(cause: Exception): Unit = synchronized(sendLock) {
+        frameToSend?.let {
+            it.onSendFailed(cause)
+            it.release()
+        }
+        frameToSend = null
+    }
+
     interface OnGattEventListener {
         fun onStateChanged(state: State)
         fun onLastRequestStatusChanged(requestStatus: RequestStatus)
@@ -0,0 +1,106 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.ble
+
+import android.bluetooth.BluetoothGatt
+import android.bluetooth.BluetoothGattCharacteristic
+import android.bluetooth.BluetoothGattDescriptor
+import android.bluetooth.BluetoothGattService
+import android.os.Build
+import android.support.annotation.RequiresApi
+import android.util.Log
+import java.util.*
+
+private const val LOG_TAG = "GattHandles"
+
+/**
+ * Services, characteristics and descriptors of a [BleProfile] resolved once the services of a
+ * connection are discovered, so the later operations don't search them again. Only valid for
+ * that connection.
+ */
+@RequiresApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+internal class GattHandles private constructor(val service: BluetoothGattService,
+                                               val readCharacteristic: BluetoothGattCharacteristic?,
+                                               val configDescriptor: BluetoothGattDescriptor?,
+                                               val writeCharacteristic: BluetoothGattCharacteristic?,
+                                               /**
+                                                * The write characteristic followed by the extra
+                                                * ones found, see [BleProfile.extraWriteCharacteristics].
+                                                */
+                                               val writeCharacteristics: Array<BluetoothGattCharacteristic>,
+                                               val writeType: Int,
+                                               val extraNotifyCharacteristics: List<BluetoothGattCharacteristic>,
+                                               val deviceNameCharacteristic: BluetoothGattCharacteristic?) {
+
+    fun isWriteCharacteristic(characteristic: BluetoothGattCharacteristic): Boolean {
+        for (writeCharacteristic in writeCharacteristics) {
+            if (writeCharacteristic.uuid == characteristic.uuid) return true
+        }
+        return false
+    }
+
+    fun isNotifyCharacteristic(characteristic: BluetoothGattCharacteristic): Boolean {
+        if (readCharacteristic?.uuid == characteristic.uuid) return true
+        for (notifyCharacteristic in extraNotifyCharacteristics) {
+            if (notifyCharacteristic.uuid == characteristic.uuid) return true
+        }
+        return false
+    }
+
+    companion object {
+        /**
+         * Resolve the handles of the [bleProfile] in the discovered services of the [gatt]. Returns
+         * null if the custom service isn't there.
+         */
+        fun resolve(gatt: BluetoothGatt, bleProfile: BleProfile): GattHandles? {
+            val service = bleProfile.customService?.let { gatt.getService(it) } ?: return null
+
+            val readCharacteristic = bleProfile.customReadCharacteristic?.let { service.getCharacteristic(it) }
+            val writeCharacteristic = bleProfile.customWriteCharacteristic?.let { service.getCharacteristic(it) }
+            val writeCharacteristics = (listOf(writeCharacteristic) + findCharacteristics(service, bleProfile.extraWriteCharacteristics))
+                .filterNotNull().toTypedArray()
+
+            // All of them must support it, as the chunks are written in turns
+            val writeType = if (bleProfile.writeWithoutResponse && writeCharacteristic != null
+                                && writeCharacteristics.all { it.properties and BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE != 0 }) {
+                BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+            } else {
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+            }
+
+            return GattHandles(service,
+                readCharacteristic,
+                readCharacteristic?.getDescriptor(bleProfile.characteristicConfigDescriptor),
+                writeCharacteristic,
+                if (writeCharacteristic != null) writeCharacteristics else emptyArray(),
+                writeType,
+                findCharacteristics(service, bleProfile.extraNotifyCharacteristics).filterNotNull(),
+                gatt.getService(bleProfile.genericAccessService)?.getCharacteristic(bleProfile.deviceNameCharacteristic))
+        }
+
+        private fun findCharacteristics(service: BluetoothGattService, uuids: List<UUID>) = uuids.map {
+            val characteristic: BluetoothGattCharacteristic? = service.getCharacteristic(it)
+            if (characteristic == null) Log.w(LOG_TAG, "The characteristic $it isn't in the custom service")
+            characteristic
+        }
+    }
+}
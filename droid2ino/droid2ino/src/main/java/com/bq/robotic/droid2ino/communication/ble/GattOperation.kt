@@ -0,0 +1,158 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.ble
+
+import android.bluetooth.BluetoothDevice
+import android.bluetooth.BluetoothGatt
+import android.bluetooth.BluetoothGattCharacteristic
+import android.bluetooth.BluetoothGattDescriptor
+import android.os.Build
+import android.support.annotation.RequiresApi
+import com.bq.robotic.droid2ino.communication.ConnectionTrace
+
+/**
+ * Operation on a remote GATT server. Android drops the operations requested while another one
+ * is pending, so they are run one at a time by a [GattOperationQueue].
+ */
+@RequiresApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+sealed class GattOperation(val type: Type) {
+
+    companion object {
+        const val DEFAULT_TIMEOUT_MS = 3000L
+        const val DISCOVER_SERVICES_TIMEOUT_MS = 10000L
+        const val REQUEST_MTU_TIMEOUT_MS = 2000L
+        const val SET_PREFERRED_PHY_TIMEOUT_MS = 500L
+    }
+
+    /**
+     * Types of operations, with their own latency stats.
+     */
+    enum class Type(internal val traceOperation: Int) {
+        DISCOVER_SERVICES(ConnectionTrace.OP_DISCOVER_SERVICES),
+        READ_CHARACTERISTIC(ConnectionTrace.OP_READ_CHARACTERISTIC),
+        WRITE_CHARACTERISTIC(ConnectionTrace.OP_WRITE_CHARACTERISTIC),
+        WRITE_DESCRIPTOR(ConnectionTrace.OP_WRITE_DESCRIPTOR),
+        REQUEST_MTU(ConnectionTrace.OP_REQUEST_MTU),
+        REQUEST_CONNECTION_PRIORITY(ConnectionTrace.OP_REQUEST_CONNECTION_PRIORITY),
+        SET_PREFERRED_PHY(ConnectionTrace.OP_SET_PREFERRED_PHY)
+    }
+
+    /**
+     * Time to wait for the callback of the operation before giving up on it.
+     */
+    open val timeoutMs = DEFAULT_TIMEOUT_MS
+
+    /**
+     * False if the operation is completed as soon as it is requested, without any callback.
+     */
+    open val hasCallback = true
+
+    /**
+     * Number of bytes written by the operation, if any.
+     */
+    open val size = 0
+
+    /**
+     * Characteristic or descriptor on which the operation is run, if any, so a late callback on
+     * another one isn't taken as the result of this operation.
+     */
+    internal open val target: Any? get() = null
+
+    /**
+     * Request the operation. Returns false if it couldn't be requested.
+     */
+    internal abstract fun execute(gatt: BluetoothGatt): Boolean
+
+    class DiscoverServices : GattOperation(Type.DISCOVER_SERVICES) {
+        override val timeoutMs = DISCOVER_SERVICES_TIMEOUT_MS
+        override fun execute(gatt: BluetoothGatt) = gatt.discoverServices()
+    }
+
+    class ReadCharacteristic(val characteristic: BluetoothGattCharacteristic) : GattOperation(Type.READ_CHARACTERISTIC) {
+        override val target get() = characteristic
+        override fun execute(gatt: BluetoothGatt) = gatt.readCharacteristic(characteristic)
+    }
+
+    /**
+     * Write the [value] in the [characteristic] with the given [writeType]. The value is copied when
+     * the operation is run, so the array mustn't be modified until then.
+     */
+    class WriteCharacteristic @JvmOverloads constructor(
+        val characteristic: BluetoothGattCharacteristic,
+        val value: ByteArray,
+        val writeType: Int = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) : GattOperation(Type.WRITE_CHARACTERISTIC) {
+        override val size get() = value.size
+        override val target get() = characteristic
+
+        override fun execute(gatt: BluetoothGatt): Boolean {
+            characteristic.writeType = writeType
+            characteristic.value = value
+            return gatt.writeCharacteristic(characteristic)
+        }
+    }
+
+    class WriteDescriptor(val descriptor: BluetoothGattDescriptor, val value: ByteArray)
+        : GattOperation(Type.WRITE_DESCRIPTOR) {
+        override val size get() = value.size
+        override val target get() = descriptor
+
+        override fun execute(gatt: BluetoothGatt): Boolean {
+            descriptor.value = value
+            gatt.writeDescriptor(descriptor)
+            // The result isn't reliable, many times it is false but the write is done and its
+            // callback is called, so only the timeout is trusted
+            return true
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    class RequestMtu(val mtu: Int) : GattOperation(Type.REQUEST_MTU) {
+        // Some devices never call back if the MTU doesn't change
+        override val timeoutMs = REQUEST_MTU_TIMEOUT_MS
+        override fun execute(gatt: BluetoothGatt) = gatt.requestMtu(mtu)
+    }
+
+    /**
+     * Request a connection priority, one of the BluetoothGatt.CONNECTION_PRIORITY_* values. There
+     * is no callback for it.
+     */
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    class RequestConnectionPriority(val priority: Int) : GattOperation(Type.REQUEST_CONNECTION_PRIORITY) {
+        override val hasCallback = false
+        override fun execute(gatt: BluetoothGatt) = gatt.requestConnectionPriority(priority)
+    }
+
+    /**
+     * Request the PHYs given by the BluetoothDevice.PHY_LE_*_MASK values for transmitting and
+     * receiving. The ones actually used are reported by the onPhyUpdate callback.
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    class SetPreferredPhy(val txPhy: Int, val rxPhy: Int) : GattOperation(Type.SET_PREFERRED_PHY) {
+        // Some devices don't call back if the PHY doesn't change, so it doesn't hold the queue long
+        override val timeoutMs = SET_PREFERRED_PHY_TIMEOUT_MS
+
+        override fun execute(gatt: BluetoothGatt): Boolean {
+            gatt.setPreferredPhy(txPhy, rxPhy, BluetoothDevice.PHY_OPTION_NO_PREFERRED)
+            return true
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.ble
+
+import android.bluetooth.BluetoothGatt
+import android.os.Build
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.support.annotation.RequiresApi
+import android.util.Log
+import com.bq.robotic.droid2ino.communication.ConnectionTrace
+import java.util.ArrayDeque
+
+/**
+ * Runs the [GattOperation]s on the remote GATT server one at a time, in the order they are
+ * enqueued. The next operation is requested as soon as the callback of the current one arrives,
+ * or once it times out, so no operation is dropped by Android and no arbitrary delay is needed
+ * between them.
+ */
+@RequiresApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+internal class GattOperationQueue(private val failureListener: OnOperationFailedListener) {
+    private val LOG_TAG = this.javaClass.simpleName
+
+    companion object {
+        private const val OPERATION_TIMEOUT = 1
+    }
+
+    /**
+     * Listener for the operations that couldn't be requested or whose callback never arrived.
+     */
+    interface OnOperationFailedListener {
+        fun onOperationFailed(operation: GattOperation, isTimeout: Boolean)
+    }
+
+    /**
+     * The GATT client on which the operations are run.
+     */
+    @Volatile var gatt: BluetoothGatt? = null
+
+    // Guarded by lock
+    private val lock = Any()
+    private val pendingOperations = ArrayDeque<GattOperation>()
+    private var currentOperation: GattOperation? = null
+    private var currentOperationStartMs = 0L
+    private val stats = GattOperation.Type.values().map { GattOperationStats(it) }
+
+    // The timeout of each operation is a message with the operation as token, so cancelling it
+    // never cancels the timeout of another operation
+    private val timeoutHandler = Handler(Looper.getMainLooper(), Handler.Callback { message ->
+        checkTimeout(message.obj as GattOperation)
+        true
+    })
+
+    /**
+     * Add an operation to the queue, running it right away if there isn't any in progress.
+     */
+    fun enqueue(operation: GattOperation) {
+        synchronized(lock) {
+            pendingOperations.addLast(operation)
+        }
+
+        runNextOperation()
+    }
+
+    /**
+     * Complete the current operation, if it is of the given [type] and run on the given [target]
+     * characteristic or descriptor, and run the next one. Called from the GATT callbacks. Returns
+     * false if there wasn't such operation in progress, for example because it already timed out
+     * and this is its late callback.
+     */
+    fun onOperationCompleted(type: GattOperation.Type, status: Int, target: Any? = null): Boolean {
+        synchronized(lock) {
+            val operation = currentOperation
+            if (operation == null || operation.type != type || operation.target !== target) {
+                Log.w(LOG_TAG, "Unexpected callback of a $type operation")
+                return false
+            }
+
+            stats[type.ordinal].recordCompletion(SystemClock.uptimeMillis() - currentOperationStartMs,
+                status == BluetoothGatt.GATT_SUCCESS)
+            timeoutHandler.removeMessages(OPERATION_TIMEOUT, operation)
+            currentOperation = null
+        }
+
+        if (ConnectionTrace.isEnabled) ConnectionTrace.record(ConnectionTrace.GATT_OP_END, type.traceOperation, status)
+        runNextOperation()
+        return true
+    }
+
+    /**
+     * Discard the pending operations and the one in progress, if any.
+     */
+    fun clear() {
+        synchronized(lock) {
+            pendingOperations.clear()
+            currentOperation?.let { timeoutHandler.removeMessages(OPERATION_TIMEOUT, it) }
+            currentOperation = null
+        }
+    }
+
+    /**
+     * Return a snapshot of the latency stats of the operations of the given [type].
+     */
+    fun getStats(type: GattOperation.Type) = synchronized(lock) { stats[type.ordinal].copy() }
+
+    private fun runNextOperation() {
+        while (true) {
+            val operation = synchronized(lock) {
+                if (currentOperation != null) return
+                val nextOperation = pendingOperations.pollFirst() ?: return
+                currentOperation = nextOperation
+                currentOperationStartMs = SystemClock.uptimeMillis()
+                // Scheduled before the request, as its callback can arrive before it returns
+                if (nextOperation.hasCallback) {
+                    timeoutHandler.sendMessageDelayed(
+                        timeoutHandler.obtainMessage(OPERATION_TIMEOUT, nextOperation), nextOperation.timeoutMs)
+                }
+                nextOperation
+            }
+
+            if (ConnectionTrace.isEnabled)
+                ConnectionTrace.record(ConnectionTrace.GATT_OP_START, operation.type.traceOperation, operation.size)
+
+            val isRequested = gatt?.let { operation.execute(it) } == true
+
+            if (isRequested && operation.hasCallback) return
+
+            synchronized(lock) {
+                if (currentOperation !== operation) return
+                timeoutHandler.removeMessages(OPERATION_TIMEOUT, operation)
+                currentOperation = null
+                if (isRequested) {
+                    stats[operation.type.ordinal].recordCompletion(SystemClock.uptimeMillis() - currentOperationStartMs, true)
+                } else {
+                    stats[operation.type.ordinal].recordFailure()
+                }
+            }
+
+            if (!isRequested) {
+                Log.e(LOG_TAG, "Unable to request the ${operation.type} operation")
+                failureListener.onOperationFailed(operation, false)
+            }
+        }
+    }
+
+    /**
+     * Give up on the [operation] if its callback didn't arrive in time. Called from the main
+     * thread. Ignored if the operation is no longer the current one.
+     */
+    private fun checkTimeout(operation: GattOperation) {
+        synchronized(lock) {
+            if (currentOperation !== operation) return
+            stats[operation.type.ordinal].recordTimeout()
+            currentOperation = null
+        }
+
+        Log.e(LOG_TAG, "The ${operation.type} operation timed out after ${operation.timeoutMs} ms")
+        if (ConnectionTrace.isEnabled) ConnectionTrace.record(ConnectionTrace.GATT_OP_END, operation.type.traceOperation, -1)
+        failureListener.onOperationFailed(operation, true)
+        runNextOperation()
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.ble
+
+/**
+ * Latency stats of the operations of a [GattOperation.Type], from the moment they are requested
+ * until their callback arrives.
+ */
+class GattOperationStats internal constructor(val type: GattOperation.Type) {
+    /**
+     * Number of operations completed, successfully or not, without timing out.
+     */
+    var count = 0L
+        private set
+
+    /**
+     * Number of operations completed with an error status or that couldn't be requested.
+     */
+    var failures = 0L
+        private set
+
+    /**
+     * Number of operations whose callback didn't arrive in time.
+     */
+    var timeouts = 0L
+        private set
+
+    var totalLatencyMs = 0L
+        private set
+
+    var maxLatencyMs = 0L
+        private set
+
+    val averageLatencyMs: Long
+        get() = if (count == 0L) 0L else totalLatencyMs / count
+
+    internal fun recordCompletion(latencyMs: Long, isSuccess: Boolean) {
+        count++
+        if (!isSuccess) failures++
+        totalLatencyMs += latencyMs
+        maxLatencyMs = Math.max(maxLatencyMs, latencyMs)
+    }
+
+    internal fun recordFailure() {
+        failures++
+    }
+
+    internal fun recordTimeout() {
+        timeouts++
+    }
+
+    internal fun copy() = GattOperationStats(type).also {
+        it.count = count
+        it.failures = failures
+        it.timeouts = timeouts
+        it.totalLatencyMs = totalLatencyMs
+        it.maxLatencyMs = maxLatencyMs
+    }
+
+    override fun toString() = "$type: count=$count failures=$failures timeouts=$timeouts " +
+                              "avg=${averageLatencyMs}ms max=${maxLatencyMs}ms"
+}
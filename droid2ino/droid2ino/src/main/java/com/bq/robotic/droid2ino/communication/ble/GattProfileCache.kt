@@ -0,0 +1,123 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.ble
+
+import android.content.Context
+import android.os.Build
+import android.support.annotation.RequiresApi
+import android.util.Log
+import java.util.*
+
+private const val PREFERENCES_NAME = "droid2ino_gatt_profile_cache"
+private const val KEY_SERVICE = ".service"
+private const val KEY_READ_CHARACTERISTIC = ".readCharacteristic"
+private const val KEY_WRITE_CHARACTERISTIC = ".writeCharacteristic"
+private const val KEY_WRITE_PROPERTIES = ".writeProperties"
+private const val KEY_MTU = ".mtu"
+private const val KEY_DEVICE_NAME = ".deviceName"
+
+/**
+ * Persistent cache of what was learnt from each device, keyed by its address, so the reconnections
+ * don't wait for the same negotiations and reads again. The entries are only a hint, they are
+ * validated against the discovered services and invalidated if they don't match.
+ */
+@RequiresApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+internal class GattProfileCache(context: Context) {
+    private val LOG_TAG = this.javaClass.simpleName
+
+    private val preferences = context.applicationContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+
+    /**
+     * Layout of the custom service of a device, the MTU negotiated with it and its name.
+     */
+    data class Entry(val serviceUuid: UUID,
+                     val readCharacteristicUuid: UUID?,
+                     val writeCharacteristicUuid: UUID?,
+                     val writeProperties: Int,
+                     val mtu: Int,
+                     val deviceName: String?) {
+        /**
+         * Whether the discovered [handles] still have this layout.
+         */
+        fun matches(handles: GattHandles) = serviceUuid == handles.service.uuid
+            && readCharacteristicUuid == handles.readCharacteristic?.uuid
+            && writeCharacteristicUuid == handles.writeCharacteristic?.uuid
+            && writeProperties == (handles.writeCharacteristic?.properties ?: 0)
+
+        companion object {
+            fun from(handles: GattHandles, mtu: Int, deviceName: String?) = Entry(handles.service.uuid,
+                handles.readCharacteristic?.uuid,
+                handles.writeCharacteristic?.uuid,
+                handles.writeCharacteristic?.properties ?: 0,
+                mtu,
+                deviceName)
+        }
+    }
+
+    /**
+     * Return the entry of the device with the given [address], or null if there isn't any.
+     */
+    fun get(address: String): Entry? {
+        val service = preferences.getString(address + KEY_SERVICE, null) ?: return null
+        return try {
+            Entry(UUID.fromString(service),
+                preferences.getString(address + KEY_READ_CHARACTERISTIC, null)?.let { UUID.fromString(it) },
+                preferences.getString(address + KEY_WRITE_CHARACTERISTIC, null)?.let { UUID.fromString(it) },
+                preferences.getInt(address + KEY_WRITE_PROPERTIES, 0),
+                preferences.getInt(address + KEY_MTU, 0),
+                preferences.getString(address + KEY_DEVICE_NAME, null))
+        } catch (e: IllegalArgumentException) {
+            Log.w(LOG_TAG, "Invalid cached profile of $address", e)
+            invalidate(address)
+            null
+        }
+    }
+
+    fun put(address: String, entry: Entry) {
+        preferences.edit()
+            .putString(address + KEY_SERVICE, entry.serviceUuid.toString())
+            .putString(address + KEY_READ_CHARACTERISTIC, entry.readCharacteristicUuid?.toString())
+            .putString(address + KEY_WRITE_CHARACTERISTIC, entry.writeCharacteristicUuid?.toString())
+            .putInt(address + KEY_WRITE_PROPERTIES, entry.writeProperties)
+            .putInt(address + KEY_MTU, entry.mtu)
+            .putString(address + KEY_DEVICE_NAME, entry.deviceName)
+            .apply()
+    }
+
+    fun invalidate(address: String) {
+        preferences.edit()
+            .remove(address + KEY_SERVICE)
+            .remove(address + KEY_READ_CHARACTERISTIC)
+            .remove(address + KEY_WRITE_CHARACTERISTIC)
+            .remove(address + KEY_WRITE_PROPERTIES)
+            .remove(address + KEY_MTU)
+            .remove(address + KEY_DEVICE_NAME)
+            .apply()
+    }
+
+    /**
+     * Remove the entries of all the devices.
+     */
+    fun clear() {
+        preferences.edit().clear().apply()
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.ble
+
+import android.util.Log
+
+// The sequence number of each chunk is 1 byte long
+private const val SEQUENCE_SPACE = 256
+// Chunks further behind the next expected one are duplicates or leftovers of a gap already skipped
+private const val MAX_REORDER_DISTANCE = SEQUENCE_SPACE / 2
+// Chunks held waiting for a missing one before giving it up as lost
+private const val MAX_PENDING_CHUNKS = 32
+
+/**
+ * Puts back in order the chunks notified through several characteristics, each starting with a
+ * 1 byte sequence number, see [BleProfile.extraNotifyCharacteristics].
+ */
+internal class StripeReassembler {
+    private val LOG_TAG = this.javaClass.simpleName
+
+    /**
+     * Listener for the payload of the chunks, in order.
+     */
+    interface OnChunkReadyListener {
+        fun onChunkReady(chunk: ByteArray, offset: Int, length: Int)
+    }
+
+    // Chunks received before the next expected one, indexed by their sequence number. Android
+    // creates a new value array for each notification, so they are kept without copying them
+    private val pendingChunks = arrayOfNulls<ByteArray>(SEQUENCE_SPACE)
+    private var pendingCount = 0
+    private var nextSequence = 0
+
+    /**
+     * Number of chunks given up as lost.
+     */
+    @Volatile var skippedChunks = 0L
+        private set
+
+    /**
+     * Forget the pending chunks and expect the sequence number 0, for a new connection.
+     */
+    fun reset() {
+        pendingChunks.fill(null)
+        pendingCount = 0
+        nextSequence = 0
+    }
+
+    /**
+     * Add the notified [chunk], passing to the [listener] its payload and the one of the pending
+     * chunks that follow it if it is the next expected one.
+     */
+    fun accept(chunk: ByteArray, listener: OnChunkReadyListener) {
+        if (chunk.isEmpty()) return
+
+        val sequence = chunk[0].toInt() and 0xFF
+        val distance = (sequence - nextSequence) and 0xFF
+        if (distance >= MAX_REORDER_DISTANCE) {
+            Log.w(LOG_TAG, "Discarding the late chunk $sequence")
+            return
+        }
+
+        if (distance != 0) {
+            if (pendingChunks[sequence] == null) pendingCount++
+            pendingChunks[sequence] = chunk
+            if (pendingCount <= MAX_PENDING_CHUNKS) return
+
+            // Give up on the missing chunks until the first one held
+            while (pendingChunks[nextSequence] == null) {
+                Log.w(LOG_TAG, "Skipping the missing chunk $nextSequence")
+                skippedChunks++
+                nextSequence = (nextSequence + 1) and 0xFF
+            }
+        } else {
+            listener.onChunkReady(chunk, 1, chunk.size - 1)
+            nextSequence = (nextSequence + 1) and 0xFF
+        }
+
+        // Deliver the chunks that were waiting for this one
+        while (true) {
+            val pendingChunk = pendingChunks[nextSequence] ?: break
+            pendingChunks[nextSequence] = null
+            pendingCount--
+            listener.onChunkReady(pendingChunk, 1, pendingChunk.size - 1)
+            nextSequence = (nextSequence + 1) and 0xFF
+        }
+    }
+}
@@ -32,6 +32,16 @@ import android.os.Handler;
 import android.util.Log;
 
 import com.bq.robotic.droid2ino.R;
+import com.bq.robotic.droid2ino.communication.BtFrameListener;
+import com.bq.robotic.droid2ino.communication.ConnectionTrace;
+import com.bq.robotic.droid2ino.communication.ReceiveQueuePolicy;
+import com.bq.robotic.droid2ino.communication.ReceivedMessagesDispatcher;
+import com.bq.robotic.droid2ino.communication.framing.ByteArrayPool;
+import com.bq.robotic.droid2ino.communication.framing.DelimiterFrameCodec;
+import com.bq.robotic.droid2ino.communication.framing.FrameBufferView;
+import com.bq.robotic.droid2ino.communication.framing.FrameCodec;
+import com.bq.robotic.droid2ino.communication.framing.FrameDecoder;
+import com.bq.robotic.droid2ino.communication.framing.PooledByteArray;
 import com.bq.robotic.droid2ino.utils.ConnectionErrorFeedback;
 import com.bq.robotic.droid2ino.utils.Droid2InoConstants;
 import com.bq.robotic.droid2ino.utils.Droid2InoConstants.ConnectionState;
@@ -39,6 +49,7 @@ import com.bq.robotic.droid2ino.utils.Droid2InoConstants.ConnectionState;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.UUID;
 
 import static com.bq.robotic.droid2ino.utils.Droid2InoConstants.ConnectionState.*;
@@ -70,12 +81,17 @@ public class BtSocketConnection {
    // Member fields
    private final BluetoothAdapter adapter;
    private final Handler handler;
+   private final ReceivedMessagesDispatcher receivedMessagesDispatcher;
    private AcceptThread acceptThread;
    private ConnectThread connectThread;
    private ConnectedThread connectedThread;
    private ConnectionState state;
    private Context context;
    private boolean isDuplexConnection = true;
+   private FrameCodec frameCodec = DelimiterFrameCodec.DEFAULT;
+   private volatile BtFrameListener frameListener;
+   private volatile LinkPacer linkPacer;
+   private volatile int eventMask = Droid2InoConstants.EVENT_ALL;
 
    /**
     * Constructor. Prepares a new BluetoothConnect session.
@@ -88,6 +104,7 @@ public class BtSocketConnection {
       state = DISCONNECTED;
       this.handler = handler;
       this.context = context;
+      receivedMessagesDispatcher = new ReceivedMessagesDispatcher(handler);
    }
 
    /**
@@ -97,9 +114,11 @@ public class BtSocketConnection {
     */
    private synchronized void setState(ConnectionState state) {
       this.state = state;
+      if (ConnectionTrace.isEnabled) ConnectionTrace.record(ConnectionTrace.SOCKET_STATE_CHANGED, state.ordinal());
 
       // Give the new state to the Handler so the UI Activity can update
-      handler.obtainMessage(Droid2InoConstants.MESSAGE_STATE_CHANGE, state).sendToTarget();
+      if ((eventMask & Droid2InoConstants.EVENT_STATE_CHANGE) != 0)
+         handler.obtainMessage(Droid2InoConstants.MESSAGE_STATE_CHANGE, state).sendToTarget();
    }
 
    /**
@@ -131,6 +150,108 @@ public class BtSocketConnection {
       this.isDuplexConnection = isDuplexConnection;
    }
 
+   /**
+    * Return the {@link FrameCodec} used to delimit the messages exchanged with the connected device.
+    */
+   public synchronized FrameCodec getFrameCodec() {
+      return frameCodec;
+   }
+
+
+   /**
+    * Set the {@link FrameCodec} used to delimit the messages exchanged with the connected device.
+    * It will be used from the next connection on.
+    *
+    * @param frameCodec the frame codec to use
+    */
+   public synchronized void setFrameCodec(FrameCodec frameCodec) {
+      this.frameCodec = frameCodec;
+   }
+
+   /**
+    * Return the {@link BtFrameListener} that receives the messages as raw bytes, if any.
+    */
+   public BtFrameListener getFrameListener() {
+      return frameListener;
+   }
+
+
+   /**
+    * Set a {@link BtFrameListener} for receiving the messages as raw bytes instead of as Strings
+    * through the handler, or null for receiving them as Strings again.
+    *
+    * @param frameListener the listener for the raw messages
+    */
+   public void setFrameListener(BtFrameListener frameListener) {
+      this.frameListener = frameListener;
+   }
+
+   /**
+    * Return the events the listener is subscribed to.
+    */
+   public int getEventMask() {
+      return eventMask;
+   }
+
+   /**
+    * Set the events the listener is subscribed to, a combination of the
+    * {@link Droid2InoConstants#EVENT_ALL} flags. The rest of events aren't sent to the handler. The
+    * {@link BtFrameListener}, if any, receives the messages regardless of this mask.
+    *
+    * @param eventMask the flags of the subscribed events
+    */
+   public void setEventMask(int eventMask) {
+      this.eventMask = eventMask;
+   }
+
+   /**
+    * Return the {@link LinkPacer} that paces the writes, if any.
+    */
+   public LinkPacer getLinkPacer() {
+      return linkPacer;
+   }
+
+
+   /**
+    * Set a {@link LinkPacer} for never writing faster than the connected board can read, or null
+    * for writing as fast as possible. It will be used from the next connection on.
+    *
+    * @param linkPacer the pacer of the writes
+    */
+   public void setLinkPacer(LinkPacer linkPacer) {
+      this.linkPacer = linkPacer;
+   }
+
+   /**
+    * Set the time in milliseconds during which the received messages are collected before being
+    * sent together to the handler.
+    *
+    * @param batchWindowMs the batch window, see {@link ReceivedMessagesDispatcher#getBatchWindowMs()}
+    */
+   public void setReceiveBatchWindow(long batchWindowMs) {
+      receivedMessagesDispatcher.setBatchWindowMs(batchWindowMs);
+   }
+
+   /**
+    * Set the max number of received messages pending to be delivered and the policy to apply when
+    * that number is reached. It must be called before the connection starts.
+    *
+    * @param capacity max number of pending messages
+    * @param policy what to do when the queue of received messages is full
+    * @param keyExtractor key of the received messages, only for {@link ReceiveQueuePolicy#LATEST_PER_KEY}
+    */
+   public void setReceiveQueue(int capacity, ReceiveQueuePolicy policy,
+                               ReceivedMessagesDispatcher.MessageKeyExtractor keyExtractor) {
+      receivedMessagesDispatcher.configureQueue(capacity, policy, keyExtractor);
+   }
+
+   /**
+    * Return the number of received messages discarded by the policy of the receive queue.
+    */
+   public long getDroppedReceivedMessages() {
+      return receivedMessagesDispatcher.getDroppedMessages();
+   }
+
    /**
     * Start the connectivity service. Specifically start AcceptThread to begin a
     * session in listening (server) mode. Called by the Activity onResume()
@@ -217,7 +338,8 @@ public class BtSocketConnection {
       connectedThread.start();
 
       // Send the name of the connected device back to the UI Activity
-      handler.obtainMessage(Droid2InoConstants.MESSAGE_DEVICE_NAME, device.getName()).sendToTarget();
+      if ((eventMask & Droid2InoConstants.EVENT_DEVICE_NAME) != 0)
+         handler.obtainMessage(Droid2InoConstants.MESSAGE_DEVICE_NAME, device.getName()).sendToTarget();
 
       setState(CONNECTED_CONFIGURED);
    }
@@ -252,15 +374,55 @@ public class BtSocketConnection {
     * @see ConnectedThread#write(byte[])
     */
    public void write(byte[] out) {
+      write(PooledByteArray.wrap(out));
+   }
+
+   /**
+    * Write to the ConnectedThread in an unsynchronized manner. The message is released once it
+    * is written, so it mustn't be used after calling this method.
+    *
+    * @param message The bytes to write, with the object to report as sent as its tag
+    * @see ConnectedThread#write(PooledByteArray)
+    */
+   public void write(PooledByteArray message) {
+      // Create temporary object
+      ConnectedThread r;
+      // Synchronize a copy of the ConnectedThread
+      synchronized (this) {
+         if (state != CONNECTED_CONFIGURED) {
+            message.onSendFailed(new IOException("Not connected"));
+            message.release();
+            return;
+         }
+         r = connectedThread;
+      }
+      // Perform the write unsynchronized
+      r.write(message);
+   }
+
+   /**
+    * Write several messages to the ConnectedThread in an unsynchronized manner, with a single
+    * write in the socket. The messages are released once they are written.
+    *
+    * @param messages The messages to write, in order
+    * @see ConnectedThread#write(List)
+    */
+   public void write(List<PooledByteArray> messages) {
       // Create temporary object
       ConnectedThread r;
       // Synchronize a copy of the ConnectedThread
       synchronized (this) {
-         if (state != CONNECTED_CONFIGURED) return;
+         if (state != CONNECTED_CONFIGURED) {
+            for (PooledByteArray message : messages) {
+               message.onSendFailed(new IOException("Not connected"));
+               message.release();
+            }
+            return;
+         }
          r = connectedThread;
       }
       // Perform the write unsynchronized
-      r.write(out);
+      r.write(messages);
    }
 
 
@@ -485,14 +647,45 @@ public class BtSocketConnection {
       private final BluetoothSocket mmSocket;
       private final InputStream mmInStream;
       private final OutputStream mmOutStream;
-      private final StringBuffer readMessage;
+      private final FrameCodec connectionFrameCodec;
+      private final FrameDecoder frameDecoder;
+      private final LinkPacer connectionLinkPacer;
+      private final FrameBufferView frameBufferView = new FrameBufferView();
+      private final FrameDecoder.OnFrameDecodedListener frameDecodedListener =
+         new FrameDecoder.OnFrameDecodedListener() {
+            @Override public void onFrameDecoded(byte[] frame, int offset, int length) {
+               if (ConnectionTrace.isEnabled) ConnectionTrace.record(ConnectionTrace.FRAME_EMITTED, length);
+
+               if (connectionLinkPacer != null && connectionLinkPacer.isCreditMessage(frame, offset, length)) {
+                  connectionLinkPacer.onCreditMessage(frame, offset, length);
+                  return;
+               }
+
+               BtFrameListener rawFrameListener = frameListener;
+               if (rawFrameListener != null) {
+                  rawFrameListener.onFrameReceived(frameBufferView.wrap(frame, offset, length));
+                  return;
+               }
+
+               // Don't decode the messages nobody listens to
+               if ((eventMask & Droid2InoConstants.EVENT_MESSAGE_RECEIVED) == 0) return;
+
+               String message = new String(frame, offset, length);
+
+               // Send the obtained message to the UI Activity
+               receivedMessagesDispatcher.dispatch(message);
+            }
+         };
 
       public ConnectedThread(BluetoothSocket socket) {
          Log.d(LOG_TAG, "create ConnectedThread");
          mmSocket = socket;
          InputStream tmpIn = null;
          OutputStream tmpOut = null;
-         readMessage = new StringBuffer();
+         connectionFrameCodec = frameCodec;
+         frameDecoder = connectionFrameCodec.createDecoder();
+         connectionLinkPacer = linkPacer;
+         if (connectionLinkPacer != null) connectionLinkPacer.reset();
 
          // Get the BluetoothSocket input and output streams
          try {
@@ -513,42 +706,18 @@ public class BtSocketConnection {
          Log.d(LOG_TAG, "BEGIN connectedThread");
          byte[] buffer = new byte[1024];
          int bytes;
-         int startIndex = -1;
-         int endIndex = -1;
-         String message;
 
          // Keep listening to the InputStream while connected
          while (isDuplexConnection && state == CONNECTED_CONFIGURED) {
             try {
                // Read from the InputStream
                bytes = mmInStream.read(buffer);
+               if (bytes < 0) throw new IOException("End of the input stream reached");
+               if (ConnectionTrace.isEnabled) ConnectionTrace.record(ConnectionTrace.SOCKET_READ, bytes);
 
-               readMessage.append(new String(buffer, 0, bytes));
-
-               // Check if the string stored is a complete instruction, that starts with "_" and ends with "%"
-               // If the instruction is full send it to the handler and delete it from the StringBuilder
-
-               startIndex = readMessage.indexOf(Droid2InoConstants.START_READ_DELIMITER);
-               endIndex = readMessage.indexOf(Droid2InoConstants.END_READ_DELIMITER);
-
-//                    Log.e(LOG_TAG, "startindex: " + startIndex);
-//                    Log.e(LOG_TAG, "endIndex: " + startIndex);
-               Log.d(LOG_TAG, "readMessage: " + readMessage);
-
-               if ((startIndex != -1) && (endIndex != -1) && (startIndex < endIndex)) {
-
-                  message = readMessage.substring(startIndex + 2, endIndex);
-
-                  // Send the obtained message to the UI Activity
-                  handler.obtainMessage(Droid2InoConstants.MESSAGE_RECEIVED, message).sendToTarget();
-
-                  // Delete from the first character to delete possible broken messages and not add with the next message
-                  readMessage.delete(0, endIndex + 1);
-               }
-
-               startIndex = -1;
-               endIndex = -1;
-
+               // Every complete message found in the bytes read is sent to the handler.
+               // Incomplete ones wait for the next read.
+               frameDecoder.decode(buffer, 0, bytes, frameDecodedListener);
 
             } catch (IOException e) {
                Log.e(LOG_TAG, "disconnected", e);
@@ -561,18 +730,77 @@ public class BtSocketConnection {
       }
 
       /**
-       * Write to the connected OutStream.
+       * Write to the connected OutStream and release the message.
        *
-       * @param buffer The bytes to write
+       * @param message The bytes to write
        */
-      public void write(byte[] buffer) {
+      public void write(PooledByteArray message) {
+         PooledByteArray frame = ByteArrayPool.SHARED.acquire();
          try {
-            mmOutStream.write(buffer);
+            connectionFrameCodec.encode(message.getArray(), 0, message.getLength(), frame);
+            writeToStream(frame);
+            if (ConnectionTrace.isEnabled) ConnectionTrace.record(ConnectionTrace.SOCKET_WRITE, frame.getLength());
 
             // Share the sent message back to the UI Activity
-            handler.obtainMessage(Droid2InoConstants.MESSAGE_SENT, buffer).sendToTarget();
+            if ((eventMask & Droid2InoConstants.EVENT_MESSAGE_SENT) != 0)
+               handler.obtainMessage(Droid2InoConstants.MESSAGE_SENT, message.getTag()).sendToTarget();
+            message.onSent();
+         } catch (IOException e) {
+            Log.e(LOG_TAG, "Exception during write", e);
+            message.onSendFailed(e);
+         } finally {
+            frame.release();
+            message.release();
+         }
+      }
+
+      /**
+       * Write the frames of several messages to the connected OutStream at once and release the
+       * messages.
+       *
+       * @param messages The messages to write, in order
+       */
+      public void write(List<PooledByteArray> messages) {
+         PooledByteArray frames = ByteArrayPool.SHARED.acquire();
+         try {
+            for (PooledByteArray message : messages) {
+               connectionFrameCodec.encode(message.getArray(), 0, message.getLength(), frames);
+            }
+
+            writeToStream(frames);
+            if (ConnectionTrace.isEnabled) ConnectionTrace.record(ConnectionTrace.SOCKET_WRITE, frames.getLength());
+
+            // Share each sent message back to the UI Activity
+            boolean isSentEventSubscribed = (eventMask & Droid2InoConstants.EVENT_MESSAGE_SENT) != 0;
+            for (PooledByteArray message : messages) {
+               if (isSentEventSubscribed)
+                  handler.obtainMessage(Droid2InoConstants.MESSAGE_SENT, message.getTag()).sendToTarget();
+               message.onSent();
+            }
          } catch (IOException e) {
             Log.e(LOG_TAG, "Exception during write", e);
+            for (PooledByteArray message : messages) message.onSendFailed(e);
+         } finally {
+            frames.release();
+            for (PooledByteArray message : messages) message.release();
+         }
+      }
+
+      /**
+       * Write the bytes in the OutStream, in the bursts allowed by the link pacer if any.
+       */
+      private void writeToStream(PooledByteArray bytes) throws IOException {
+         if (connectionLinkPacer == null) {
+            mmOutStream.write(bytes.getArray(), 0, bytes.getLength());
+            return;
+         }
+
+         int offset = 0;
+         while (offset < bytes.getLength()) {
+            int burst = connectionLinkPacer.acquire(bytes.getLength() - offset);
+            mmOutStream.write(bytes.getArray(), offset, burst);
+            mmOutStream.flush();
+            offset += burst;
          }
       }
 
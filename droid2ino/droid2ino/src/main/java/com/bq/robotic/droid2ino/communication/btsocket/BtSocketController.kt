@@ -31,14 +31,42 @@ import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
 import android.os.Handler
+import android.os.SystemClock
 import android.util.Log
 import com.bq.robotic.droid2ino.communication.BtControllerInterface
+import com.bq.robotic.droid2ino.communication.BtFrameListener
+import com.bq.robotic.droid2ino.communication.PrioritySendQueue
+import com.bq.robotic.droid2ino.communication.ReceiveQueuePolicy
+import com.bq.robotic.droid2ino.communication.ReceivedMessagesDispatcher
+import com.bq.robotic.droid2ino.communication.SendHandle
+import com.bq.robotic.droid2ino.communication.SendPriority
+import com.bq.robotic.droid2ino.communication.framing.ByteArrayPool
+import com.bq.robotic.droid2ino.communication.framing.FrameCodec
+import com.bq.robotic.droid2ino.communication.framing.PooledByteArray
+import com.bq.robotic.droid2ino.communication.framing.Utf8Encoder
 import com.bq.robotic.droid2ino.utils.Droid2InoConstants.ConnectionState
 import com.bq.robotic.droid2ino.utils.HandlerUtils
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicBoolean
 
 class BtSocketController(private val btAdapter: BluetoothAdapter): BtControllerInterface {
     private val LOG_TAG = this.javaClass.simpleName
 
+    companion object {
+        /**
+         * Max delay value for writing each message as soon as it is sent.
+         */
+        const val NO_WRITE_COALESCING = -1L
+
+        /**
+         * Default number of pending bytes that triggers the write of the coalesced messages.
+         */
+        const val DEFAULT_COALESCING_FLUSH_THRESHOLD = 512
+
+        // Message of the send handler for writing the queued messages
+        private const val DRAIN_SEND_QUEUE = 1
+    }
+
     // Member object for the BT connect services
     private var btSocketConnection: BtSocketConnection? = null
     private val bluetoothDisconnectReceiver: BroadcastReceiver by lazy { DisconnectBluetoothBroadcastReceiver() }
@@ -49,6 +77,31 @@ class BtSocketController(private val btAdapter: BluetoothAdapter): BtControllerI
     // some old devices
     private var sendHandler: Handler? = null
 
+    // Write coalescing configuration, see [setWriteCoalescing]
+    @Volatile private var coalescingMaxDelayMs = NO_WRITE_COALESCING
+    @Volatile private var coalescingFlushThreshold = DEFAULT_COALESCING_FLUSH_THRESHOLD
+
+    // Messages waiting to be written together, only accessed from the send handler thread
+    private val pendingMessages = mutableListOf<PooledByteArray>()
+    private var pendingBytes = 0
+    private var lastWriteUptimeMs = 0L
+    private val flushRunnable = Runnable { flushPendingMessages() }
+
+    // Messages waiting to be written by the send handler thread, by priority
+    private val sendQueue = PrioritySendQueue<PooledByteArray>()
+    private val isSendQueueDrainScheduled = AtomicBoolean(false)
+
+    // Writes the queued messages in the send handler thread, without allocating a Runnable for
+    // each one of them
+    private val sendCallback = Handler.Callback { msg ->
+        if (msg.what == DRAIN_SEND_QUEUE) {
+            drainSendQueue()
+            true
+        } else {
+            false
+        }
+    }
+
     override fun prepareBtEnvironment(context: Context, communicationHandler: Handler) {
         // Initialize the BluetoothConnectService to perform bluetooth connections
         btSocketConnection = BtSocketConnection(context, communicationHandler)
@@ -78,7 +131,7 @@ class BtSocketController(private val btAdapter: BluetoothAdapter): BtControllerI
 
     override fun connectToBtDevice(context: Context, address: String) {
         registerReceivers(context)
-        if (sendHandler == null) sendHandler = HandlerUtils.createHandler("btSocketSendHandler")
+        if (sendHandler == null) sendHandler = HandlerUtils.createHandler("btSocketSendHandler", sendCallback)
 
         // Get the BluetoothDevice object
         val device = btAdapter.getRemoteDevice(address)
@@ -95,33 +148,193 @@ class BtSocketController(private val btAdapter: BluetoothAdapter): BtControllerI
         releaseResourcesOnDestroy()
     }
 
-    override fun sendMessage(message: String) {
+    override fun sendMessage(message: String) = sendMessage(message, SendPriority.DEFAULT, null)
+
+    override fun sendMessage(message: String, priority: SendPriority, coalesceKey: Any?): SendHandle {
         // Check that we're actually connected before trying anything
         if (!isConnected()) {
-            return
+            return SendHandle.failed(message, IOException("Not connected"))
         }
 
         // Check that there's actually something to send
-        if (!message.isNullOrBlank()) {
-            // Get the message bytes and tell the BluetoothConnectService to write
-            val send = message.toByteArray()
-
-            sendHandler?.post { btSocketConnection?.write(send) }
+        if (message.isBlank()) {
+            return SendHandle.failed(message, IllegalArgumentException("Empty message"))
         }
+
+        // Encode the message in a pooled buffer and tell the BluetoothConnectService to write
+        val send = ByteArrayPool.SHARED.acquire()
+        Utf8Encoder.encode(message, send)
+        send.tag = message
+
+        return enqueueMessage(send, priority, coalesceKey)
     }
 
-    override fun sendMessage(messageBuffer: ByteArray) {
+    override fun sendMessage(messageBuffer: ByteArray) = sendMessage(messageBuffer, SendPriority.DEFAULT, null)
+
+    override fun sendMessage(messageBuffer: ByteArray, priority: SendPriority, coalesceKey: Any?) =
+        sendMessage(messageBuffer, messageBuffer.size, priority, coalesceKey)
+
+    override fun sendMessage(messageBuffer: ByteArray, length: Int, priority: SendPriority, coalesceKey: Any?): SendHandle {
+        val message = PooledByteArray.wrap(messageBuffer, length)
+
         // Check that we're actually connected before trying anything
         if (!isConnected()) {
-            return
+            return SendHandle.failed(message.tag, IOException("Not connected"))
         }
 
         // Check that there's actually something to send
-        if (messageBuffer.isNotEmpty()) {
-            sendHandler?.post { btSocketConnection?.write(messageBuffer) }
+        if (length == 0) {
+            return SendHandle.failed(message.tag, IllegalArgumentException("Empty message"))
+        }
+
+        return enqueueMessage(message, priority, coalesceKey)
+    }
+
+    /**
+     * Add the message to the send queue and make sure the send handler thread will write it. The
+     * urgent messages skip the messages already waiting in the send handler.
+     */
+    private fun enqueueMessage(message: PooledByteArray, priority: SendPriority, coalesceKey: Any?): SendHandle {
+        val sendHandle = SendHandle(message.tag)
+        message.sendHandle = sendHandle
+
+        val handler = sendHandler
+        if (handler == null) {
+            message.onSendFailed(IOException("Not connected"))
+            message.release()
+            return sendHandle
+        }
+
+        sendQueue.offer(message, priority, coalesceKey)?.release()
+
+        if (isSendQueueDrainScheduled.compareAndSet(false, true)) {
+            val drainMessage = handler.obtainMessage(DRAIN_SEND_QUEUE)
+            if (priority == SendPriority.URGENT) {
+                handler.sendMessageAtFrontOfQueue(drainMessage)
+            } else {
+                handler.sendMessage(drainMessage)
+            }
+        }
+
+        return sendHandle
+    }
+
+    /**
+     * Write the pending messages, from the highest priority to the lowest one. The queue is polled
+     * again after each write, so a message of a higher priority only waits for the current write.
+     * Called from the send handler thread.
+     */
+    private fun drainSendQueue() {
+        isSendQueueDrainScheduled.set(false)
+
+        while (true) {
+            val entry = sendQueue.pollEntry() ?: return
+
+            if (entry.priority == SendPriority.URGENT) {
+                // Don't wait for the coalescing of the previous messages
+                lastWriteUptimeMs = SystemClock.uptimeMillis()
+                btSocketConnection?.write(entry.message) ?: entry.message.release()
+            } else {
+                writeMessage(entry.message)
+            }
         }
     }
 
+    /**
+     * Coalesce the messages sent in quick succession in a single write of the socket. A message
+     * sent after the link was idle for [maxDelayMs] is written right away, so single interactive
+     * commands aren't delayed. The following ones wait until [flushThresholdBytes] are pending,
+     * [maxDelayMs] elapse or [flush] is called. Pass [NO_WRITE_COALESCING] as [maxDelayMs] to
+     * write each message as soon as it is sent, which is the default.
+     */
+    @JvmOverloads
+    fun setWriteCoalescing(maxDelayMs: Long, flushThresholdBytes: Int = DEFAULT_COALESCING_FLUSH_THRESHOLD) {
+        coalescingFlushThreshold = flushThresholdBytes
+        coalescingMaxDelayMs = maxDelayMs
+        if (maxDelayMs < 0) flush()
+    }
+
+    /**
+     * Pace the writes with the given [LinkPacer] so they are never faster than what the connected
+     * board can read, or write as fast as possible if it is null. It will be used from the next
+     * connection on.
+     */
+    fun setLinkPacer(linkPacer: LinkPacer?) {
+        btSocketConnection?.linkPacer = linkPacer
+    }
+
+    /**
+     * Write right away the messages waiting to be coalesced, if any.
+     */
+    fun flush() {
+        sendHandler?.post(flushRunnable)
+    }
+
+    /**
+     * Write the [message] or keep it for writing it later together with the next ones, depending on
+     * the write coalescing configuration. Called from the send handler thread.
+     */
+    private fun writeMessage(message: PooledByteArray) {
+        val maxDelayMs = coalescingMaxDelayMs
+        val now = SystemClock.uptimeMillis()
+
+        if (maxDelayMs < 0 || (pendingMessages.isEmpty() && now - lastWriteUptimeMs >= maxDelayMs)) {
+            // The link was idle, don't delay this message
+            lastWriteUptimeMs = now
+            btSocketConnection?.write(message) ?: message.release()
+            return
+        }
+
+        pendingMessages.add(message)
+        pendingBytes += message.length
+
+        if (pendingBytes >= coalescingFlushThreshold) {
+            flushPendingMessages()
+        } else if (pendingMessages.size == 1) {
+            sendHandler?.postDelayed(flushRunnable, maxDelayMs)
+        }
+    }
+
+    private fun flushPendingMessages() {
+        sendHandler?.removeCallbacks(flushRunnable)
+        if (pendingMessages.isEmpty()) return
+
+        lastWriteUptimeMs = SystemClock.uptimeMillis()
+        val connection = btSocketConnection
+        when {
+            connection == null -> pendingMessages.forEach { it.release() }
+            pendingMessages.size == 1 -> connection.write(pendingMessages[0])
+            else -> connection.write(pendingMessages)
+        }
+
+        pendingMessages.clear()
+        pendingBytes = 0
+    }
+
+    override fun setFrameCodec(frameCodec: FrameCodec) {
+        btSocketConnection?.frameCodec = frameCodec
+    }
+
+    override fun setFrameListener(frameListener: BtFrameListener?) {
+        btSocketConnection?.frameListener = frameListener
+    }
+
+    override fun setReceiveBatchWindow(batchWindowMs: Long) {
+        btSocketConnection?.setReceiveBatchWindow(batchWindowMs)
+    }
+
+    override fun setReceiveQueue(capacity: Int, policy: ReceiveQueuePolicy,
+                                 keyExtractor: ReceivedMessagesDispatcher.MessageKeyExtractor?) {
+        check(!isConnected()) { "The receive queue can't be changed while connected" }
+        btSocketConnection?.setReceiveQueue(capacity, policy, keyExtractor)
+    }
+
+    override fun getDroppedReceivedMessages() = btSocketConnection?.droppedReceivedMessages ?: 0L
+
+    override fun setEventMask(eventMask: Int) {
+        btSocketConnection?.eventMask = eventMask
+    }
+
     override fun isConnected() = btSocketConnection?.state == ConnectionState.CONNECTED_CONFIGURED
 
     private fun registerReceivers(context: Context) {
@@ -139,9 +352,19 @@ class BtSocketController(private val btAdapter: BluetoothAdapter): BtControllerI
     }
 
     private fun releaseResourcesOnDestroy() {
-        // Quit the send handler and it looper
-        sendHandler?.removeCallbacksAndMessages(null)
-        sendHandler?.looper?.quit()
+        // Quit the send handler and it looper, discarding the queued messages and the ones waiting
+        // to be coalesced in its thread so their handles are cancelled
+        sendHandler?.let {
+            it.removeCallbacksAndMessages(null)
+            it.post {
+                sendQueue.clear().forEach { message -> message.release() }
+                isSendQueueDrainScheduled.set(false)
+                pendingMessages.forEach { message -> message.release() }
+                pendingMessages.clear()
+                pendingBytes = 0
+                it.looper.quit()
+            }
+        }
         sendHandler = null
     }
 
@@ -0,0 +1,169 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.btsocket
+
+import android.os.SystemClock
+import android.util.Log
+import com.bq.robotic.droid2ino.communication.framing.AsciiNumberParser
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Paces the writes of a BT socket connection so the phone never sends faster than the board can
+ * drain its receive buffer.
+ *
+ * The bytes are written at the rate of the serial link between the BT module and the board, given
+ * by its [baudRate], in bursts of at most [receiveWindowBytes], the size of the receive buffer of
+ * the board (63 bytes in the Arduino sketches).
+ *
+ * Optionally, the board can grant the phone permission to send more bytes with credit messages,
+ * such as `!c63` (`&&!c63%%` with the default codec), once it has read them from its buffer. The
+ * phone starts with a full window of credits and, without credits, it waits for them until
+ * [creditTimeoutMs] elapse. Then it assumes the board drained its buffer, so a lost credit
+ * message doesn't block the connection. The credit messages aren't delivered to the listeners.
+ */
+class LinkPacer @JvmOverloads constructor(
+    val baudRate: Int,
+    val receiveWindowBytes: Int = DEFAULT_RECEIVE_WINDOW_BYTES,
+    val useCredits: Boolean = false,
+    creditPrefix: String = DEFAULT_CREDIT_PREFIX,
+    val creditTimeoutMs: Long = DEFAULT_CREDIT_TIMEOUT_MS) {
+
+    private val LOG_TAG = this.javaClass.simpleName
+
+    companion object {
+        const val DEFAULT_RECEIVE_WINDOW_BYTES = 63
+        const val DEFAULT_CREDIT_PREFIX = "!c"
+        const val DEFAULT_CREDIT_TIMEOUT_MS = 500L
+
+        // Start, data and stop bits of each byte in a 8N1 serial link
+        private const val BITS_PER_BYTE = 10
+    }
+
+    private val creditPrefixBytes = creditPrefix.toByteArray(Charsets.US_ASCII)
+    private val bytesPerSecond = baudRate / BITS_PER_BYTE
+
+    private val lock = ReentrantLock()
+    private val creditsReceived = lock.newCondition()
+
+    // Guarded by lock
+    private var availableBytes = receiveWindowBytes.toDouble()
+    private var lastRefillUptimeMs = 0L
+    private var credits = receiveWindowBytes
+
+    /**
+     * Number of times the credits didn't arrive in time and a full window was assumed.
+     */
+    @Volatile var creditTimeouts = 0L
+        private set
+
+    init {
+        require(bytesPerSecond > 0) { "The baud rate must be at least $BITS_PER_BYTE" }
+        require(receiveWindowBytes > 0) { "The receive window must be greater than 0" }
+    }
+
+    /**
+     * Start pacing a new connection, with the receive buffer of the board empty.
+     */
+    fun reset() = lock.withLock {
+        availableBytes = receiveWindowBytes.toDouble()
+        lastRefillUptimeMs = SystemClock.uptimeMillis()
+        credits = receiveWindowBytes
+    }
+
+    /**
+     * Wait until some of the [pendingBytes] can be written and return how many of them. Called
+     * from the thread that writes in the socket.
+     */
+    fun acquire(pendingBytes: Int): Int = lock.withLock {
+        val burstBytes = Math.min(pendingBytes, receiveWindowBytes)
+
+        try {
+            // Wait for the serial link to transmit the previous bytes. Nothing signals it, the
+            // wait only releases the lock so the credits can still be added meanwhile
+            refill()
+            while (availableBytes < burstBytes) {
+                val waitMs = Math.ceil((burstBytes - availableBytes) * 1000 / bytesPerSecond).toLong()
+                creditsReceived.await(Math.max(waitMs, 1), TimeUnit.MILLISECONDS)
+                refill()
+            }
+
+            if (useCredits) awaitCredits()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+
+        val bytes = if (useCredits) Math.min(burstBytes, Math.max(credits, 1)) else burstBytes
+        availableBytes -= bytes
+        if (useCredits) credits = Math.max(credits - bytes, 0)
+        return bytes
+    }
+
+    private fun refill() {
+        val now = SystemClock.uptimeMillis()
+        availableBytes = Math.min(receiveWindowBytes.toDouble(),
+            availableBytes + (now - lastRefillUptimeMs) * bytesPerSecond / 1000.0)
+        lastRefillUptimeMs = now
+    }
+
+    private fun awaitCredits() {
+        if (credits > 0) return
+
+        var remainingNanos = TimeUnit.MILLISECONDS.toNanos(creditTimeoutMs)
+        while (credits == 0 && remainingNanos > 0L) {
+            remainingNanos = creditsReceived.awaitNanos(remainingNanos)
+        }
+
+        if (credits == 0) {
+            Log.w(LOG_TAG, "No credits received in $creditTimeoutMs ms, assuming an empty receive buffer")
+            creditTimeouts++
+            credits = receiveWindowBytes
+        }
+    }
+
+    /**
+     * Return true if the received message is a credit message of the board.
+     */
+    fun isCreditMessage(message: ByteArray, offset: Int, length: Int): Boolean {
+        if (!useCredits || length <= creditPrefixBytes.size) return false
+        for (i in 0 until creditPrefixBytes.size) {
+            if (message[offset + i] != creditPrefixBytes[i]) return false
+        }
+        return true
+    }
+
+    /**
+     * Add the credits granted by a credit message. Called from the thread that reads the socket.
+     */
+    fun onCreditMessage(message: ByteArray, offset: Int, length: Int) {
+        val grantedBytes = AsciiNumberParser.parseInt(message, offset + creditPrefixBytes.size, offset + length)
+        if (grantedBytes == AsciiNumberParser.INVALID_INT || grantedBytes <= 0) {
+            Log.w(LOG_TAG, "Invalid credit message received")
+            return
+        }
+
+        lock.withLock {
+            credits = Math.min(credits + grantedBytes.toInt(), receiveWindowBytes)
+            creditsReceived.signalAll()
+        }
+    }
+}
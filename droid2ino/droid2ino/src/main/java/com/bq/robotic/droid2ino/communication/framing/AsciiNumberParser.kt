@@ -0,0 +1,128 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+/**
+ * Parses numbers written as ASCII text directly from the received bytes, without creating any
+ * String nor boxed number.
+ */
+internal object AsciiNumberParser {
+    /**
+     * Value returned by [parseInt] when the text isn't a valid integer.
+     */
+    const val INVALID_INT = Long.MIN_VALUE
+
+    private const val MAX_SIGNIFICANT_DIGITS = 18
+
+    /**
+     * Parse the integer between [start] (inclusive) and [end] (exclusive), ignoring surrounding
+     * spaces. Returns [INVALID_INT] if it isn't a valid integer in the range of an Int.
+     */
+    fun parseInt(data: ByteArray, start: Int, end: Int): Long {
+        var position = skipSpaces(data, start, end)
+        val last = trimSpaces(data, position, end)
+        if (position == last) return INVALID_INT
+
+        val isNegative = data[position] == '-'.toByte()
+        if (isNegative || data[position] == '+'.toByte()) position++
+        if (position == last) return INVALID_INT
+
+        var value = 0L
+        while (position < last) {
+            val digit = data[position++] - '0'.toByte()
+            if (digit < 0 || digit > 9) return INVALID_INT
+            value = value * 10 + digit
+            if (value > Int.MAX_VALUE.toLong() + 1) return INVALID_INT
+        }
+
+        if (isNegative) value = -value
+        return if (value < Int.MIN_VALUE || value > Int.MAX_VALUE) INVALID_INT else value
+    }
+
+    /**
+     * Parse the decimal number between [start] (inclusive) and [end] (exclusive), ignoring
+     * surrounding spaces. An exponent such as `1.5e3` is supported. Returns [Float.NaN] if it
+     * isn't a valid number.
+     */
+    fun parseFloat(data: ByteArray, start: Int, end: Int): Float {
+        var position = skipSpaces(data, start, end)
+        val last = trimSpaces(data, position, end)
+        if (position == last) return Float.NaN
+
+        val isNegative = data[position] == '-'.toByte()
+        if (isNegative || data[position] == '+'.toByte()) position++
+
+        var mantissa = 0L
+        var significantDigits = 0
+        var exponent = 0
+        var digits = 0
+        var isDecimalPart = false
+
+        while (position < last) {
+            val byte = data[position]
+            if (byte == '.'.toByte() && !isDecimalPart) {
+                isDecimalPart = true
+                position++
+                continue
+            }
+
+            val digit = byte - '0'.toByte()
+            if (digit < 0 || digit > 9) break
+            digits++
+            position++
+
+            if (significantDigits < MAX_SIGNIFICANT_DIGITS) {
+                mantissa = mantissa * 10 + digit
+                if (mantissa != 0L) significantDigits++
+                if (isDecimalPart) exponent--
+            } else if (!isDecimalPart) {
+                // Digits beyond the precision only change the magnitude
+                exponent++
+            }
+        }
+
+        if (digits == 0) return Float.NaN
+
+        if (position < last) {
+            if (data[position] != 'e'.toByte() && data[position] != 'E'.toByte()) return Float.NaN
+            val explicitExponent = parseInt(data, position + 1, last)
+            if (explicitExponent == INVALID_INT) return Float.NaN
+            exponent += explicitExponent.toInt()
+        }
+
+        var value = mantissa.toDouble()
+        if (exponent != 0) value *= Math.pow(10.0, exponent.toDouble())
+        return (if (isNegative) -value else value).toFloat()
+    }
+
+    private fun skipSpaces(data: ByteArray, start: Int, end: Int): Int {
+        var position = start
+        while (position < end && data[position] == ' '.toByte()) position++
+        return position
+    }
+
+    private fun trimSpaces(data: ByteArray, start: Int, end: Int): Int {
+        var last = end
+        while (last > start && (data[last - 1] == ' '.toByte() || data[last - 1] == '\r'.toByte()
+                                || data[last - 1] == '\n'.toByte())) last--
+        return last
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+/**
+ * Thread safe pool of [PooledByteArray]s for encoding the outgoing messages. At most
+ * [maxPooledArrays] released arrays are kept, and arrays that grew over [maxPooledCapacity] bytes
+ * aren't kept so a single big message doesn't retain memory forever.
+ */
+class ByteArrayPool @JvmOverloads constructor(
+    private val maxPooledArrays: Int = DEFAULT_MAX_POOLED_ARRAYS,
+    private val initialCapacity: Int = DEFAULT_INITIAL_CAPACITY,
+    private val maxPooledCapacity: Int = DEFAULT_MAX_POOLED_CAPACITY) {
+
+    companion object {
+        const val DEFAULT_MAX_POOLED_ARRAYS = 16
+        const val DEFAULT_INITIAL_CAPACITY = 128
+        const val DEFAULT_MAX_POOLED_CAPACITY = 16 * 1024
+
+        /**
+         * Pool shared by the connections of this library.
+         */
+        @JvmField
+        val SHARED = ByteArrayPool()
+    }
+
+    // Guarded by this
+    private val pooledArrays = arrayOfNulls<PooledByteArray>(maxPooledArrays)
+    private var pooledCount = 0
+
+    /**
+     * Obtain an empty array from the pool, or a new one if the pool is empty.
+     */
+    fun acquire(): PooledByteArray {
+        synchronized(this) {
+            if (pooledCount > 0) {
+                val pooledArray = pooledArrays[--pooledCount]
+                pooledArrays[pooledCount] = null
+                return pooledArray!!
+            }
+        }
+
+        return PooledByteArray(initialCapacity, this)
+    }
+
+    internal fun recycle(pooledArray: PooledByteArray) {
+        if (pooledArray.array.size > maxPooledCapacity) return
+
+        synchronized(this) {
+            if (pooledCount < maxPooledArrays) pooledArrays[pooledCount++] = pooledArray
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+/**
+ * Incremental matcher of a byte pattern over a stream of bytes. It uses a precomputed table
+ * (Knuth-Morris-Pratt prefix function) so each byte is checked only once, without rescanning the
+ * bytes already seen, even if the pattern was partially matched.
+ */
+internal class BytePatternMatcher(private val pattern: ByteArray) {
+    // For each position of the pattern, length of the longest proper prefix that is also a suffix
+    private val prefixTable = IntArray(pattern.size)
+
+    /**
+     * Number of bytes of the pattern matched by the last bytes given to [matches].
+     */
+    var matchedLength = 0
+        private set
+
+    val patternLength: Int
+        get() = pattern.size
+
+    init {
+        require(pattern.isNotEmpty()) { "The pattern to match can not be empty" }
+
+        var length = 0
+        for (i in 1 until pattern.size) {
+            while (length > 0 && pattern[i] != pattern[length]) length = prefixTable[length - 1]
+            if (pattern[i] == pattern[length]) length++
+            prefixTable[i] = length
+        }
+    }
+
+    /**
+     * Feed the next byte of the stream. Returns true if that byte completes the pattern. After a
+     * full match the matcher starts again from scratch, so matches never overlap.
+     */
+    fun matches(byte: Byte): Boolean {
+        var length = matchedLength
+        while (length > 0 && byte != pattern[length]) length = prefixTable[length - 1]
+        if (byte == pattern[length]) length++
+
+        if (length == pattern.size) {
+            matchedLength = 0
+            return true
+        }
+
+        matchedLength = length
+        return false
+    }
+
+    fun reset() {
+        matchedLength = 0
+    }
+}
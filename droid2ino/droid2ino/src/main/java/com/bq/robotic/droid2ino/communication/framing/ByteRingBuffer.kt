@@ -0,0 +1,114 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+/**
+ * Fixed size circular buffer of bytes. It never grows, so the memory used for storing the bytes
+ * pending of being processed is always bounded by the [capacity] given in the constructor.
+ * Indexes used in [get] and [copyTo] are relative to the oldest stored byte.
+ *
+ * This class is not thread safe, it is expected to be used only from the thread reading the data.
+ */
+class ByteRingBuffer(capacity: Int) {
+    private val buffer = ByteArray(capacity)
+    // Index in [buffer] of the oldest stored byte
+    private var head = 0
+
+    /**
+     * Number of bytes currently stored.
+     */
+    var size = 0
+        private set
+
+    /**
+     * Max number of bytes that can be stored.
+     */
+    val capacity: Int
+        get() = buffer.size
+
+    /**
+     * Number of bytes that can still be written before the buffer is full.
+     */
+    fun remaining() = buffer.size - size
+
+    fun isFull() = size == buffer.size
+
+    /**
+     * Store as many bytes from [src] as fit in the free space of this buffer.
+     *
+     * @return the number of bytes that were really stored
+     */
+    fun write(src: ByteArray, offset: Int, length: Int): Int {
+        val count = Math.min(length, remaining())
+        if (count == 0) return 0
+
+        val tail = wrap(head + size)
+        val firstPart = Math.min(count, buffer.size - tail)
+        System.arraycopy(src, offset, buffer, tail, firstPart)
+        if (firstPart < count) {
+            System.arraycopy(src, offset + firstPart, buffer, 0, count - firstPart)
+        }
+
+        size += count
+        return count
+    }
+
+    /**
+     * Obtain the stored byte at the [index] position, being 0 the oldest stored byte.
+     */
+    operator fun get(index: Int): Byte = buffer[wrap(head + index)]
+
+    /**
+     * Copy [length] stored bytes starting at [index] into [dst], handling the wrap around of the
+     * circular buffer.
+     */
+    fun copyTo(index: Int, dst: ByteArray, dstOffset: Int, length: Int) {
+        val start = wrap(head + index)
+        val firstPart = Math.min(length, buffer.size - start)
+        System.arraycopy(buffer, start, dst, dstOffset, firstPart)
+        if (firstPart < length) {
+            System.arraycopy(buffer, 0, dst, dstOffset + firstPart, length - firstPart)
+        }
+    }
+
+    /**
+     * Discard the [count] oldest stored bytes.
+     */
+    fun skip(count: Int) {
+        if (count >= size) {
+            clear()
+            return
+        }
+
+        head = wrap(head + count)
+        size -= count
+    }
+
+    /**
+     * Discard all the stored bytes.
+     */
+    fun clear() {
+        head = 0
+        size = 0
+    }
+
+    private fun wrap(index: Int) = if (index >= buffer.size) index - buffer.size else index
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+/**
+ * Table driven CRC-8 (polynomial 0x07, initial value 0x00), used to check small headers.
+ */
+object Crc8 {
+    private val TABLE = IntArray(256) {
+        var crc = it
+        for (bit in 0 until 8) {
+            crc = if (crc and 0x80 != 0) (crc shl 1) xor 0x07 else crc shl 1
+        }
+        crc and 0xFF
+    }
+
+    const val INITIAL_VALUE = 0x00
+
+    fun update(crc: Int, byte: Byte): Int = TABLE[(crc xor byte.toInt()) and 0xFF]
+}
+
+/**
+ * Table driven CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF).
+ */
+object Crc16 {
+    private val TABLE = IntArray(256) {
+        var crc = it shl 8
+        for (bit in 0 until 8) {
+            crc = if (crc and 0x8000 != 0) (crc shl 1) xor 0x1021 else crc shl 1
+        }
+        crc and 0xFFFF
+    }
+
+    const val INITIAL_VALUE = 0xFFFF
+
+    fun update(crc: Int, byte: Byte): Int =
+        ((crc shl 8) xor TABLE[((crc ushr 8) xor byte.toInt()) and 0xFF]) and 0xFFFF
+
+    fun update(crc: Int, data: ByteArray, offset: Int, length: Int): Int {
+        var result = crc
+        for (i in offset until offset + length) result = update(result, data[i])
+        return result
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import com.bq.robotic.droid2ino.utils.Droid2InoConstants
+
+/**
+ * [FrameCodec] using Consistent Overhead Byte Stuffing (COBS). The payload is encoded without any
+ * zero byte and each frame ends with a zero byte. The overhead is at most one byte each 254 bytes
+ * of payload, so it is a compact framing for binary messages.
+ */
+class CobsFrameCodec @JvmOverloads constructor(
+    private val maxFrameSize: Int = Droid2InoConstants.MAX_READ_MESSAGE_SIZE) : FrameCodec {
+
+    companion object {
+        private const val DELIMITER = 0.toByte()
+        private const val MAX_BLOCK_CODE = 0xFF
+    }
+
+    override fun createDecoder(): FrameDecoder = CobsFrameDecoder(maxFrameSize)
+
+    override fun encode(payload: ByteArray, offset: Int, length: Int): ByteArray {
+        val frame = ByteArray(length + length / (MAX_BLOCK_CODE - 1) + 2)
+        var codePosition = 0
+        var position = 1
+        var code = 1
+
+        for (i in offset until offset + length) {
+            if (payload[i] == DELIMITER) {
+                frame[codePosition] = code.toByte()
+                codePosition = position++
+                code = 1
+            } else {
+                frame[position++] = payload[i]
+                code++
+                if (code == MAX_BLOCK_CODE) {
+                    frame[codePosition] = code.toByte()
+                    codePosition = position++
+                    code = 1
+                }
+            }
+        }
+
+        frame[codePosition] = code.toByte()
+        frame[position++] = DELIMITER
+        return if (position == frame.size) frame else frame.copyOf(position)
+    }
+
+    /**
+     * Decodes the blocks as they arrive, so the encoded frame doesn't need to be stored.
+     */
+    private class CobsFrameDecoder(maxFrameSize: Int) : FrameDecoder {
+        private val frame = ByteArray(maxFrameSize)
+        private var frameLength = 0
+        // Bytes left in the current block and code of that block
+        private var blockRemainingBytes = 0
+        private var blockCode = 0
+        private var isFirstBlock = true
+        // The rest of a malformed or too long frame is ignored until the next delimiter
+        private var isSkippingFrame = false
+
+        override var droppedFrames = 0L
+            private set
+
+        override fun decode(data: ByteArray, offset: Int, length: Int,
+                            listener: FrameDecoder.OnFrameDecodedListener) {
+            for (i in offset until offset + length) {
+                val byte = data[i]
+
+                if (byte == DELIMITER) {
+                    val payloadLength = frameLength
+                    // A frame ending in the middle of a block is malformed
+                    val isFrameValid = !isSkippingFrame && !isFirstBlock && blockRemainingBytes == 0
+                    if (!isSkippingFrame && !isFrameValid && !isFirstBlock) droppedFrames++
+                    reset()
+                    if (isFrameValid) listener.onFrameDecoded(frame, 0, payloadLength)
+                    continue
+                }
+
+                if (isSkippingFrame) continue
+
+                if (blockRemainingBytes == 0) {
+                    // Start of a new block. Blocks shorter than the max size were followed by a zero
+                    if (!isFirstBlock && blockCode < MAX_BLOCK_CODE && !append(0)) continue
+                    blockCode = byte.toInt() and 0xFF
+                    blockRemainingBytes = blockCode - 1
+                    isFirstBlock = false
+                } else {
+                    append(byte)
+                    blockRemainingBytes--
+                }
+            }
+        }
+
+        private fun append(byte: Byte): Boolean {
+            if (frameLength == frame.size) {
+                droppedFrames++
+                isSkippingFrame = true
+                return false
+            }
+
+            frame[frameLength++] = byte
+            return true
+        }
+
+        override fun reset() {
+            frameLength = 0
+            blockRemainingBytes = 0
+            blockCode = 0
+            isFirstBlock = true
+            isSkippingFrame = false
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import com.bq.robotic.droid2ino.utils.Droid2InoConstants
+
+/**
+ * Length prefixed [FrameCodec] with error detection, meant for binary messages over noisy links.
+ * Each frame has this format:
+ *
+ *     SYNC | LENGTH (2 bytes, big endian) | HEADER CRC-8 | PAYLOAD | CRC-16 (2 bytes, big endian)
+ *
+ * The header CRC rejects false headers as soon as they are received, and the CRC-16 covers the
+ * length and the payload. When a frame is corrupted only its sync byte is discarded and the
+ * decoder looks for the next valid header in the bytes already received, so the valid frames that
+ * follow a corrupted one aren't lost.
+ */
+class CrcFrameCodec @JvmOverloads constructor(
+    private val maxFrameSize: Int = Droid2InoConstants.MAX_READ_MESSAGE_SIZE) : FrameCodec {
+
+    companion object {
+        private const val SYNC = 0xA5.toByte()
+        private const val HEADER_SIZE = 4
+        private const val CRC_SIZE = 2
+        private const val MAX_PAYLOAD_SIZE = 0xFFFF
+    }
+
+    init {
+        require(maxFrameSize in 0..MAX_PAYLOAD_SIZE) { "The max frame size must be between 0 and $MAX_PAYLOAD_SIZE" }
+    }
+
+    override fun createDecoder(): FrameDecoder = CrcFrameDecoder(maxFrameSize)
+
+    override fun encode(payload: ByteArray, offset: Int, length: Int): ByteArray {
+        require(length <= maxFrameSize) { "The message is longer than the max frame size" }
+
+        val frame = ByteArray(HEADER_SIZE + length + CRC_SIZE)
+        frame[0] = SYNC
+        frame[1] = (length ushr 8).toByte()
+        frame[2] = length.toByte()
+        frame[3] = headerCrc(frame[1], frame[2]).toByte()
+        System.arraycopy(payload, offset, frame, HEADER_SIZE, length)
+
+        val crc = Crc16.update(frameCrcStart(frame[1], frame[2]), payload, offset, length)
+        frame[HEADER_SIZE + length] = (crc ushr 8).toByte()
+        frame[HEADER_SIZE + length + 1] = crc.toByte()
+        return frame
+    }
+
+    override fun encode(payload: ByteArray, offset: Int, length: Int, destination: PooledByteArray) {
+        require(length <= maxFrameSize) { "The message is longer than the max frame size" }
+
+        val lengthHigh = (length ushr 8).toByte()
+        val lengthLow = length.toByte()
+        destination.append(SYNC)
+        destination.append(lengthHigh)
+        destination.append(lengthLow)
+        destination.append(headerCrc(lengthHigh, lengthLow).toByte())
+        destination.append(payload, offset, length)
+
+        val crc = Crc16.update(frameCrcStart(lengthHigh, lengthLow), payload, offset, length)
+        destination.append((crc ushr 8).toByte())
+        destination.append(crc.toByte())
+    }
+
+    private fun headerCrc(lengthHigh: Byte, lengthLow: Byte) =
+        Crc8.update(Crc8.update(Crc8.update(Crc8.INITIAL_VALUE, SYNC), lengthHigh), lengthLow)
+
+    private fun frameCrcStart(lengthHigh: Byte, lengthLow: Byte) =
+        Crc16.update(Crc16.update(Crc16.INITIAL_VALUE, lengthHigh), lengthLow)
+
+    private inner class CrcFrameDecoder(maxFrameSize: Int) : FrameDecoder {
+        private val ringBuffer = ByteRingBuffer(HEADER_SIZE + maxFrameSize + CRC_SIZE)
+        private val frame = ByteArray(maxFrameSize)
+        // Payload length of the valid header at the start of the ring buffer, -1 if not checked yet
+        private var frameLength = -1
+
+        override var droppedFrames = 0L
+            private set
+
+        override fun decode(data: ByteArray, offset: Int, length: Int,
+                            listener: FrameDecoder.OnFrameDecodedListener) {
+            var position = offset
+            val end = offset + length
+
+            // A valid frame always fits in the ring buffer, so each iteration stores new bytes
+            while (position < end) {
+                position += ringBuffer.write(data, position, end - position)
+                process(listener)
+            }
+        }
+
+        override fun reset() {
+            ringBuffer.clear()
+            frameLength = -1
+        }
+
+        private fun process(listener: FrameDecoder.OnFrameDecodedListener) {
+            while (ringBuffer.size > 0) {
+                if (frameLength < 0) {
+                    // Discard everything before the next sync byte
+                    var syncIndex = 0
+                    while (syncIndex < ringBuffer.size && ringBuffer[syncIndex] != SYNC) syncIndex++
+                    ringBuffer.skip(syncIndex)
+
+                    if (ringBuffer.size < HEADER_SIZE) return
+
+                    val length = ((ringBuffer[1].toInt() and 0xFF) shl 8) or (ringBuffer[2].toInt() and 0xFF)
+                    if (headerCrc(ringBuffer[1], ringBuffer[2]) != (ringBuffer[3].toInt() and 0xFF)
+                        || length > frame.size) {
+                        // False sync byte, look for the next one
+                        ringBuffer.skip(1)
+                        continue
+                    }
+
+                    frameLength = length
+                }
+
+                if (ringBuffer.size < HEADER_SIZE + frameLength + CRC_SIZE) return
+
+                ringBuffer.copyTo(HEADER_SIZE, frame, 0, frameLength)
+                val crc = Crc16.update(frameCrcStart(ringBuffer[1], ringBuffer[2]), frame, 0, frameLength)
+                val receivedCrc = ((ringBuffer[HEADER_SIZE + frameLength].toInt() and 0xFF) shl 8) or
+                                  (ringBuffer[HEADER_SIZE + frameLength + 1].toInt() and 0xFF)
+
+                val payloadLength = frameLength
+                frameLength = -1
+
+                if (crc == receivedCrc) {
+                    ringBuffer.skip(HEADER_SIZE + payloadLength + CRC_SIZE)
+                    listener.onFrameDecoded(frame, 0, payloadLength)
+                } else {
+                    // Corrupted frame, resynchronize from the byte after its sync byte
+                    droppedFrames++
+                    ringBuffer.skip(1)
+                }
+            }
+        }
+    }
+}
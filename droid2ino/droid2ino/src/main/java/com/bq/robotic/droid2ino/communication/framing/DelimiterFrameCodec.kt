@@ -0,0 +1,68 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import com.bq.robotic.droid2ino.utils.Droid2InoConstants
+
+/**
+ * [FrameCodec] for messages enclosed between a start and an end delimiter, such as `&&message%%`.
+ * The delimiters can't appear inside the payload, so it is meant for text messages.
+ *
+ * Historically the messages sent to the connected device aren't delimited, only the received ones,
+ * so outgoing messages are only wrapped with the delimiters if [delimitOutgoing] is true.
+ */
+class DelimiterFrameCodec @JvmOverloads constructor(
+    private val startDelimiter: ByteArray,
+    private val endDelimiter: ByteArray,
+    private val maxFrameSize: Int = Droid2InoConstants.MAX_READ_MESSAGE_SIZE,
+    private val delimitOutgoing: Boolean = false) : FrameCodec {
+
+    companion object {
+        /**
+         * Codec for the `&&message%%` format used by the Arduino sketches of this library.
+         */
+        @JvmField
+        val DEFAULT = DelimiterFrameCodec(Droid2InoConstants.START_READ_DELIMITER.toByteArray(),
+            Droid2InoConstants.END_READ_DELIMITER.toByteArray())
+    }
+
+    override fun createDecoder(): FrameDecoder =
+        DelimiterFrameDecoder(startDelimiter, endDelimiter, maxFrameSize)
+
+    override fun encode(payload: ByteArray, offset: Int, length: Int): ByteArray {
+        if (!delimitOutgoing) {
+            return if (offset == 0 && length == payload.size) payload
+                   else payload.copyOfRange(offset, offset + length)
+        }
+
+        val frame = ByteArray(startDelimiter.size + length + endDelimiter.size)
+        System.arraycopy(startDelimiter, 0, frame, 0, startDelimiter.size)
+        System.arraycopy(payload, offset, frame, startDelimiter.size, length)
+        System.arraycopy(endDelimiter, 0, frame, startDelimiter.size + length, endDelimiter.size)
+        return frame
+    }
+
+    override fun encode(payload: ByteArray, offset: Int, length: Int, destination: PooledByteArray) {
+        if (delimitOutgoing) destination.append(startDelimiter)
+        destination.append(payload, offset, length)
+        if (delimitOutgoing) destination.append(endDelimiter)
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+/**
+ * Decoder of frames enclosed between a start and an end delimiter, such as `&&message%%`.
+ *
+ * The received bytes are stored in a [ByteRingBuffer] with a fixed capacity and they are scanned
+ * only once, continuing from where the previous call to [decode] stopped, so all the complete
+ * frames contained in a read are delivered at once. Bytes outside of a frame are discarded and
+ * frames longer than [maxFrameSize] are dropped, so a missing end delimiter can't make the memory
+ * used grow without bound.
+ *
+ * This class is not thread safe, it is expected to be used only from the thread reading the data.
+ */
+class DelimiterFrameDecoder(startDelimiter: ByteArray, endDelimiter: ByteArray,
+                            maxFrameSize: Int) : FrameDecoder {
+
+    private val startMatcher = BytePatternMatcher(startDelimiter)
+    private val endMatcher = BytePatternMatcher(endDelimiter)
+    // The payload of the frame and the end delimiter must fit in the buffer. While looking for
+    // the start of a frame only a partial start delimiter is stored.
+    private val ringBuffer = ByteRingBuffer(maxFrameSize + endDelimiter.size)
+    private val frame = ByteArray(maxFrameSize)
+    // Number of bytes of the ring buffer that were already checked
+    private var scannedBytes = 0
+    private var isInsideFrame = false
+
+    override var droppedFrames = 0L
+        private set
+
+    override fun decode(data: ByteArray, offset: Int, length: Int, listener: FrameDecoder.OnFrameDecodedListener) {
+        var position = offset
+        val end = offset + length
+
+        while (position < end) {
+            position += ringBuffer.write(data, position, end - position)
+            scan(listener)
+
+            if (ringBuffer.isFull()) {
+                // The end delimiter didn't arrive before reaching the max size of a frame, drop it
+                droppedFrames++
+                reset()
+            }
+        }
+    }
+
+    override fun reset() {
+        ringBuffer.clear()
+        scannedBytes = 0
+        isInsideFrame = false
+        startMatcher.reset()
+        endMatcher.reset()
+    }
+
+    private fun scan(listener: FrameDecoder.OnFrameDecodedListener) {
+        while (scannedBytes < ringBuffer.size) {
+            val byte = ringBuffer[scannedBytes++]
+
+            if (!isInsideFrame) {
+                if (startMatcher.matches(byte)) {
+                    ringBuffer.skip(scannedBytes)
+                    scannedBytes = 0
+                    isInsideFrame = true
+                } else {
+                    // Keep only the bytes that can still be part of the start delimiter
+                    val discardedBytes = scannedBytes - startMatcher.matchedLength
+                    ringBuffer.skip(discardedBytes)
+                    scannedBytes -= discardedBytes
+                }
+
+            } else if (endMatcher.matches(byte)) {
+                val frameLength = scannedBytes - endMatcher.patternLength
+                ringBuffer.copyTo(0, frame, 0, frameLength)
+                ringBuffer.skip(scannedBytes)
+                scannedBytes = 0
+                isInsideFrame = false
+
+                listener.onFrameDecoded(frame, 0, frameLength)
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import java.nio.ByteBuffer
+
+/**
+ * Read only [ByteBuffer] view of the frames delivered by a [FrameDecoder]. Decoders reuse their
+ * frame array, so the same view is reused too and no object is allocated per frame.
+ */
+class FrameBufferView {
+    private var array: ByteArray? = null
+    private var view: ByteBuffer? = null
+
+    /**
+     * Obtain a view of the given part of [frame]. The returned buffer is reused in the next call.
+     */
+    fun wrap(frame: ByteArray, offset: Int, length: Int): ByteBuffer {
+        val buffer = view?.takeIf { frame === array } ?: ByteBuffer.wrap(frame).asReadOnlyBuffer().also {
+            array = frame
+            view = it
+        }
+
+        buffer.clear()
+        buffer.position(offset)
+        buffer.limit(offset + length)
+        return buffer
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+/**
+ * Defines how the messages are delimited in the stream of bytes exchanged with the connected device.
+ * A [FrameCodec] wraps each outgoing message in a frame and creates the [FrameDecoder]s that
+ * extract the messages from the received bytes.
+ *
+ * Built in implementations: [DelimiterFrameCodec], [LengthPrefixedFrameCodec], [CrcFrameCodec],
+ * [SlipFrameCodec], [CobsFrameCodec] and [JsonFrameCodec].
+ */
+interface FrameCodec {
+    /**
+     * Create a new decoder with its own state. A new decoder is created for each connection.
+     */
+    fun createDecoder(): FrameDecoder
+
+    /**
+     * Wrap the given payload in a frame ready to be written to the connected device.
+     */
+    fun encode(payload: ByteArray, offset: Int, length: Int): ByteArray
+
+    /**
+     * Append the frame of the given payload to [destination]. Codecs that can write the frame
+     * directly override it, so no intermediate array is allocated.
+     */
+    fun encode(payload: ByteArray, offset: Int, length: Int, destination: PooledByteArray) {
+        destination.append(encode(payload, offset, length))
+    }
+}
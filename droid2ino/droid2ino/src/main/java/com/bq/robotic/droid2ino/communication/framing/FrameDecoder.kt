@@ -0,0 +1,50 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+/**
+ * Extracts the frames from a stream of received bytes. The bytes can arrive split in any way, the
+ * decoder keeps the partial frames between calls to [decode].
+ *
+ * Decoders are not thread safe, they are expected to be used only from the thread receiving the data.
+ */
+interface FrameDecoder {
+    /**
+     * Number of frames dropped because they were malformed or too long.
+     */
+    val droppedFrames: Long
+
+    /**
+     * Decode the given bytes. [listener] is called for each complete frame found, with the payload
+     * of the frame. The array given to the listener is reused, so its content is only valid until
+     * the listener returns.
+     */
+    fun decode(data: ByteArray, offset: Int, length: Int, listener: OnFrameDecodedListener)
+
+    /**
+     * Discard the partial frame stored, if any.
+     */
+    fun reset()
+
+    interface OnFrameDecodedListener {
+        fun onFrameDecoded(frame: ByteArray, offset: Int, length: Int)
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+/**
+ * Detects where a JSON value ends while its bytes arrive, without parsing it. It tracks the
+ * nesting of objects and arrays and whether the current byte is inside a string, taking the
+ * escaped characters into account, so each byte is processed in constant time.
+ *
+ * Values that are not objects, arrays or strings (numbers, literals or plain text accepted by a
+ * lenient parser) have no end mark, see [isInsideBareValue].
+ */
+class JsonBoundaryDetector {
+    private enum class State { IDLE, NESTED_VALUE, STRING_VALUE, BARE_VALUE }
+
+    private var state = State.IDLE
+    private var depth = 0
+    private var isInsideString = false
+    private var isEscaping = false
+
+    /**
+     * True if the bytes given since the last complete value started a new one.
+     */
+    val isInsideValue: Boolean
+        get() = state != State.IDLE
+
+    /**
+     * True if the current value is a number, a literal or plain text. These values end with the
+     * data available, so the caller decides when they are complete.
+     */
+    val isInsideBareValue: Boolean
+        get() = state == State.BARE_VALUE
+
+    /**
+     * Process the next byte. Returns true if it completes a JSON value, and then the detector is
+     * ready for the next value. Whitespace before a value is ignored.
+     */
+    fun feed(byte: Byte): Boolean {
+        val char = byte.toChar()
+
+        if (isInsideString) {
+            when {
+                isEscaping -> isEscaping = false
+                char == '\\' -> isEscaping = true
+                char == '"' -> {
+                    isInsideString = false
+                    if (state == State.STRING_VALUE) {
+                        reset()
+                        return true
+                    }
+                }
+            }
+            return false
+        }
+
+        when (state) {
+            State.IDLE -> when (char) {
+                ' ', '\t', '\r', '\n' -> { } // Whitespace between values
+                '{', '[' -> {
+                    state = State.NESTED_VALUE
+                    depth = 1
+                }
+                '"' -> {
+                    state = State.STRING_VALUE
+                    isInsideString = true
+                }
+                else -> state = State.BARE_VALUE
+            }
+
+            State.NESTED_VALUE -> when (char) {
+                '"' -> isInsideString = true
+                '{', '[' -> depth++
+                '}', ']' -> if (--depth == 0) {
+                    reset()
+                    return true
+                }
+            }
+
+            State.STRING_VALUE, State.BARE_VALUE -> { }
+        }
+
+        return false
+    }
+
+    fun reset() {
+        state = State.IDLE
+        depth = 0
+        isInsideString = false
+        isEscaping = false
+    }
+}
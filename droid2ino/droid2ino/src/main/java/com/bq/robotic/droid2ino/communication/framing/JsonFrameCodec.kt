@@ -0,0 +1,98 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import com.bq.robotic.droid2ino.utils.Droid2InoConstants
+
+/**
+ * [FrameCodec] for JSON messages without any extra framing. A message is complete when the bytes
+ * received since the previous message form a complete JSON value, which is detected with a
+ * [JsonBoundaryDetector] as the bytes arrive. Values without an end mark, such as numbers or plain
+ * text, are complete at the end of the received chunk. Outgoing messages are sent as they are.
+ *
+ * This is the framing used by default with BLE, where the messages are split in several
+ * notifications of the characteristic.
+ */
+class JsonFrameCodec @JvmOverloads constructor(
+    private val maxFrameSize: Int = Droid2InoConstants.MAX_READ_MESSAGE_SIZE) : FrameCodec {
+
+    override fun createDecoder(): FrameDecoder = JsonFrameDecoder(maxFrameSize)
+
+    override fun encode(payload: ByteArray, offset: Int, length: Int): ByteArray =
+        if (offset == 0 && length == payload.size) payload
+        else payload.copyOfRange(offset, offset + length)
+
+    override fun encode(payload: ByteArray, offset: Int, length: Int, destination: PooledByteArray) =
+        destination.append(payload, offset, length)
+
+    private class JsonFrameDecoder(maxFrameSize: Int) : FrameDecoder {
+        private val frame = ByteArray(maxFrameSize)
+        private var frameLength = 0
+        private val boundaryDetector = JsonBoundaryDetector()
+        // The rest of a too long message is ignored until the message ends
+        private var isSkippingFrame = false
+
+        override var droppedFrames = 0L
+            private set
+
+        override fun decode(data: ByteArray, offset: Int, length: Int,
+                            listener: FrameDecoder.OnFrameDecodedListener) {
+            for (i in offset until offset + length) {
+                val byte = data[i]
+                val wasInsideValue = boundaryDetector.isInsideValue
+                val isValueComplete = boundaryDetector.feed(byte)
+
+                // Whitespace between messages is ignored
+                if (!wasInsideValue && !boundaryDetector.isInsideValue && !isValueComplete) continue
+
+                if (!isSkippingFrame) {
+                    if (frameLength < frame.size) {
+                        frame[frameLength++] = byte
+                    } else {
+                        droppedFrames++
+                        isSkippingFrame = true
+                    }
+                }
+
+                if (isValueComplete) completeFrame(listener)
+            }
+
+            // Values without an end mark are complete when the received chunk ends
+            if (boundaryDetector.isInsideBareValue) {
+                boundaryDetector.reset()
+                completeFrame(listener)
+            }
+        }
+
+        override fun reset() {
+            frameLength = 0
+            isSkippingFrame = false
+            boundaryDetector.reset()
+        }
+
+        private fun completeFrame(listener: FrameDecoder.OnFrameDecodedListener) {
+            val payloadLength = frameLength
+            val isFrameValid = !isSkippingFrame
+            reset()
+            if (isFrameValid) listener.onFrameDecoded(frame, 0, payloadLength)
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import com.bq.robotic.droid2ino.utils.Droid2InoConstants
+
+/**
+ * [FrameCodec] where each frame starts with the length of its payload as a 2 bytes big endian
+ * unsigned integer. The payload can contain any byte, so it is suitable for binary messages.
+ * It has no error detection, use [CrcFrameCodec] for links where bytes can be lost or corrupted.
+ */
+class LengthPrefixedFrameCodec @JvmOverloads constructor(
+    private val maxFrameSize: Int = Droid2InoConstants.MAX_READ_MESSAGE_SIZE) : FrameCodec {
+
+    companion object {
+        private const val HEADER_SIZE = 2
+        private const val MAX_PAYLOAD_SIZE = 0xFFFF
+    }
+
+    init {
+        require(maxFrameSize in 0..MAX_PAYLOAD_SIZE) { "The max frame size must be between 0 and $MAX_PAYLOAD_SIZE" }
+    }
+
+    override fun createDecoder(): FrameDecoder = LengthPrefixedFrameDecoder(maxFrameSize)
+
+    override fun encode(payload: ByteArray, offset: Int, length: Int): ByteArray {
+        require(length <= maxFrameSize) { "The message is longer than the max frame size" }
+
+        val frame = ByteArray(HEADER_SIZE + length)
+        frame[0] = (length ushr 8).toByte()
+        frame[1] = length.toByte()
+        System.arraycopy(payload, offset, frame, HEADER_SIZE, length)
+        return frame
+    }
+
+    override fun encode(payload: ByteArray, offset: Int, length: Int, destination: PooledByteArray) {
+        require(length <= maxFrameSize) { "The message is longer than the max frame size" }
+
+        destination.append((length ushr 8).toByte())
+        destination.append(length.toByte())
+        destination.append(payload, offset, length)
+    }
+
+    private class LengthPrefixedFrameDecoder(maxFrameSize: Int) : FrameDecoder {
+        private val frame = ByteArray(maxFrameSize)
+        private var headerBytes = 0
+        private var frameLength = 0
+        private var receivedBytes = 0
+        // The payload of a too long frame is skipped instead of being stored
+        private var isSkippingFrame = false
+
+        override var droppedFrames = 0L
+            private set
+
+        override fun decode(data: ByteArray, offset: Int, length: Int,
+                            listener: FrameDecoder.OnFrameDecodedListener) {
+            var position = offset
+            val end = offset + length
+
+            while (position < end) {
+                if (headerBytes < HEADER_SIZE) {
+                    frameLength = (frameLength shl 8) or (data[position++].toInt() and 0xFF)
+                    headerBytes++
+
+                    if (headerBytes == HEADER_SIZE && frameLength > frame.size) {
+                        droppedFrames++
+                        isSkippingFrame = true
+                    }
+                } else {
+                    val count = Math.min(end - position, frameLength - receivedBytes)
+                    if (!isSkippingFrame) System.arraycopy(data, position, frame, receivedBytes, count)
+                    receivedBytes += count
+                    position += count
+                }
+
+                if (headerBytes == HEADER_SIZE && receivedBytes == frameLength) {
+                    val isFrameValid = !isSkippingFrame
+                    val payloadLength = frameLength
+                    reset()
+                    if (isFrameValid) listener.onFrameDecoded(frame, 0, payloadLength)
+                }
+            }
+        }
+
+        override fun reset() {
+            headerBytes = 0
+            frameLength = 0
+            receivedBytes = 0
+            isSkippingFrame = false
+        }
+    }
+}
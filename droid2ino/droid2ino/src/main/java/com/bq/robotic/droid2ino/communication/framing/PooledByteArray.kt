@@ -0,0 +1,122 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import com.bq.robotic.droid2ino.communication.SendHandle
+import java.util.concurrent.CancellationException
+
+/**
+ * Growable byte array that can be returned to the [ByteArrayPool] it was obtained from, so the
+ * outgoing messages can be encoded without allocating a new array for each one. The valid bytes
+ * are the first [length] bytes of [array].
+ *
+ * It must not be used after calling [release].
+ */
+class PooledByteArray internal constructor(initialCapacity: Int, private val pool: ByteArrayPool?) {
+
+    companion object {
+        /**
+         * Wrap the first [length] bytes of an array that doesn't belong to any pool. Releasing it
+         * doesn't return it to any pool. The array is its [tag] too if all of it is wrapped, but
+         * a partially wrapped array has no tag, as the bytes past [length] aren't part of the
+         * message and the caller may reuse the array as soon as it is sent.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun wrap(array: ByteArray, length: Int = array.size) = PooledByteArray(0, null).apply {
+            require(length in 0..array.size) { "Invalid length $length for an array of ${array.size} bytes" }
+            this.array = array
+            this.length = length
+            tag = if (length == array.size) array else null
+        }
+    }
+
+    var array = ByteArray(initialCapacity)
+        private set
+
+    var length = 0
+        private set
+
+    /**
+     * Object that represents the content of this array for the listeners, such as the String that
+     * was encoded in it. It is cleared when the array is released.
+     */
+    var tag: Any? = null
+
+    /**
+     * Handle to complete once the content of this array was sent, if any. If the array is released
+     * before completing it, the handle is cancelled.
+     */
+    var sendHandle: SendHandle? = null
+
+    /**
+     * Discard the content, keeping the allocated capacity.
+     */
+    fun clear() {
+        length = 0
+    }
+
+    fun append(byte: Byte) {
+        ensureCapacity(length + 1)
+        array[length++] = byte
+    }
+
+    @JvmOverloads
+    fun append(data: ByteArray, offset: Int = 0, count: Int = data.size) {
+        ensureCapacity(length + count)
+        System.arraycopy(data, offset, array, length, count)
+        length += count
+    }
+
+    /**
+     * Make sure there is room for [capacity] bytes, keeping the current content.
+     */
+    fun ensureCapacity(capacity: Int) {
+        if (capacity > array.size) array = array.copyOf(Math.max(capacity, array.size * 2))
+    }
+
+    /**
+     * Complete the [sendHandle], if any, because the content was sent.
+     */
+    fun onSent() {
+        sendHandle?.complete()
+        sendHandle = null
+    }
+
+    /**
+     * Fail the [sendHandle], if any, because the content couldn't be sent.
+     */
+    fun onSendFailed(cause: Throwable) {
+        sendHandle?.fail(cause)
+        sendHandle = null
+    }
+
+    /**
+     * Return this array to its pool for reusing it.
+     */
+    fun release() {
+        length = 0
+        tag = null
+        sendHandle?.fail(CancellationException("The message was discarded before being sent"))
+        sendHandle = null
+        pool?.recycle(this)
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import com.bq.robotic.droid2ino.utils.Droid2InoConstants
+
+/**
+ * [FrameCodec] using SLIP (RFC 1055). Each frame ends with an END byte and the END and ESC bytes
+ * inside the payload are escaped, so any binary payload can be sent.
+ */
+class SlipFrameCodec @JvmOverloads constructor(
+    private val maxFrameSize: Int = Droid2InoConstants.MAX_READ_MESSAGE_SIZE) : FrameCodec {
+
+    companion object {
+        private const val END = 0xC0.toByte()
+        private const val ESC = 0xDB.toByte()
+        private const val ESC_END = 0xDC.toByte()
+        private const val ESC_ESC = 0xDD.toByte()
+    }
+
+    override fun createDecoder(): FrameDecoder = SlipFrameDecoder(maxFrameSize)
+
+    override fun encode(payload: ByteArray, offset: Int, length: Int): ByteArray {
+        var escapedBytes = 0
+        for (i in offset until offset + length) {
+            if (payload[i] == END || payload[i] == ESC) escapedBytes++
+        }
+
+        // A leading END byte flushes any noise received by the other side before this frame
+        val frame = ByteArray(length + escapedBytes + 2)
+        var position = 0
+        frame[position++] = END
+        for (i in offset until offset + length) {
+            when (payload[i]) {
+                END -> { frame[position++] = ESC; frame[position++] = ESC_END }
+                ESC -> { frame[position++] = ESC; frame[position++] = ESC_ESC }
+                else -> frame[position++] = payload[i]
+            }
+        }
+        frame[position] = END
+        return frame
+    }
+
+    private class SlipFrameDecoder(maxFrameSize: Int) : FrameDecoder {
+        private val frame = ByteArray(maxFrameSize)
+        private var frameLength = 0
+        private var isEscaping = false
+        // The rest of a too long frame is ignored until the next END byte
+        private var isSkippingFrame = false
+
+        override var droppedFrames = 0L
+            private set
+
+        override fun decode(data: ByteArray, offset: Int, length: Int,
+                            listener: FrameDecoder.OnFrameDecodedListener) {
+            for (i in offset until offset + length) {
+                val byte = data[i]
+
+                when {
+                    byte == END -> {
+                        val payloadLength = frameLength
+                        val isFrameValid = !isSkippingFrame && payloadLength > 0
+                        reset()
+                        if (isFrameValid) listener.onFrameDecoded(frame, 0, payloadLength)
+                    }
+
+                    byte == ESC -> isEscaping = true
+
+                    isSkippingFrame -> isEscaping = false
+
+                    frameLength == frame.size -> {
+                        droppedFrames++
+                        isSkippingFrame = true
+                        isEscaping = false
+                    }
+
+                    else -> {
+                        frame[frameLength++] = when {
+                            !isEscaping -> byte
+                            byte == ESC_END -> END
+                            byte == ESC_ESC -> ESC
+                            else -> byte // Protocol violation, keep the byte as RFC 1055 suggests
+                        }
+                        isEscaping = false
+                    }
+                }
+            }
+        }
+
+        override fun reset() {
+            frameLength = 0
+            isEscaping = false
+            isSkippingFrame = false
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.framing
+
+/**
+ * Encodes text as UTF-8 directly into a [PooledByteArray], without creating the intermediate
+ * String and byte array of [String.toByteArray].
+ */
+object Utf8Encoder {
+    private const val REPLACEMENT_BYTE = '?'.toByte()
+
+    /**
+     * Append the UTF-8 bytes of [text] to [destination]. Unpaired surrogates are replaced by '?',
+     * as [String.toByteArray] does.
+     */
+    @JvmStatic
+    fun encode(text: CharSequence, destination: PooledByteArray) {
+        // Most of the messages are ASCII, so this is usually the final size
+        destination.ensureCapacity(destination.length + text.length)
+
+        var index = 0
+        while (index < text.length) {
+            val char = text[index++]
+            val code = char.toInt()
+
+            when {
+                code < 0x80 -> destination.append(code.toByte())
+
+                code < 0x800 -> {
+                    destination.append((0xC0 or (code shr 6)).toByte())
+                    destination.append((0x80 or (code and 0x3F)).toByte())
+                }
+
+                Character.isHighSurrogate(char) && index < text.length
+                && Character.isLowSurrogate(text[index]) -> {
+                    val codePoint = Character.toCodePoint(char, text[index++])
+                    destination.append((0xF0 or (codePoint shr 18)).toByte())
+                    destination.append((0x80 or ((codePoint shr 12) and 0x3F)).toByte())
+                    destination.append((0x80 or ((codePoint shr 6) and 0x3F)).toByte())
+                    destination.append((0x80 or (codePoint and 0x3F)).toByte())
+                }
+
+                Character.isSurrogate(char) -> destination.append(REPLACEMENT_BYTE)
+
+                else -> {
+                    destination.append((0xE0 or (code shr 12)).toByte())
+                    destination.append((0x80 or ((code shr 6) and 0x3F)).toByte())
+                    destination.append((0x80 or (code and 0x3F)).toByte())
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,673 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.reliable
+
+import android.os.Handler
+import android.os.SystemClock
+import android.util.Log
+import com.bq.robotic.droid2ino.communication.BluetoothManager
+import com.bq.robotic.droid2ino.communication.BtFrameListener
+import com.bq.robotic.droid2ino.communication.SendHandle
+import com.bq.robotic.droid2ino.communication.SendPriority
+import com.bq.robotic.droid2ino.communication.framing.ByteArrayPool
+import com.bq.robotic.droid2ino.communication.framing.FrameBufferView
+import com.bq.robotic.droid2ino.communication.framing.PooledByteArray
+import com.bq.robotic.droid2ino.utils.HandlerUtils
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
+
+/**
+ * Optional reliable channel on top of either transport. The messages sent as reliable carry a
+ * sequence number and are kept until the device acknowledges them, being retransmitted if they
+ * aren't acknowledged in [retransmitTimeoutMs]. Up to [windowSize] messages are in flight at the
+ * same time, so the link isn't idle waiting for each acknowledgement. The messages sent as
+ * unreliable, such as high rate telemetry, are sent as they are.
+ *
+ * The frames exchanged with the device are:
+ * - `~d<seq>:<payload>` a reliable message with its sequence number, from 0 to 65535 and wrapping.
+ * - `~a<next>` or `~a<next>:<seq>,<seq>...` an acknowledgement of every message before the
+ *   `next` expected one, optionally followed by the messages received after a gap (selective
+ *   acknowledgement), so only the missing ones are retransmitted.
+ * - `~r` a reset of the sequence numbers, after a new connection or after giving up on a message.
+ *
+ * Set it as the [BtFrameListener] of the [BluetoothManager]. The received reliable messages are
+ * delivered in order and without duplicates to its [listener], together with the unreliable ones,
+ * which mustn't start with `~`. Call [reset] every time a new connection is established and
+ * [release] once it isn't needed anymore.
+ */
+class ReliableChannel internal constructor(
+    private val frameSender: FrameSender,
+    /**
+     * Max number of reliable messages in flight, waiting for their acknowledgement, a power of two.
+     * The device must be able to buffer as many out of order messages.
+     */
+    val windowSize: Int,
+    val retransmitTimeoutMs: Long,
+    /**
+     * Number of retransmissions of a message after which the channel gives up, fails the pending
+     * messages and resets the sequence numbers.
+     */
+    val maxRetransmissions: Int,
+    /**
+     * Time during which the acknowledgement of a received message is delayed, so it acknowledges
+     * the following messages too.
+     */
+    val ackDelayMs: Long,
+    private val scheduler: Scheduler) : BtFrameListener {
+
+    private val LOG_TAG = this.javaClass.simpleName
+
+    companion object {
+        const val DEFAULT_WINDOW_SIZE = 16
+        const val DEFAULT_RETRANSMIT_TIMEOUT_MS = 250L
+        const val DEFAULT_MAX_RETRANSMISSIONS = 8
+        const val DEFAULT_ACK_DELAY_MS = 20L
+
+        private const val SEQUENCE_MODULO = 0x10000
+        private const val FRAME_MARK = '~'.toByte()
+        private const val DATA_TYPE = 'd'.toByte()
+        private const val ACK_TYPE = 'a'.toByte()
+        private const val RESET_TYPE = 'r'.toByte()
+        private const val FIELD_SEPARATOR = ':'.toByte()
+        private const val SACK_SEPARATOR = ','.toByte()
+        private val RESET_FRAME = byteArrayOf(FRAME_MARK, RESET_TYPE)
+
+        // Only the latest acknowledgement pending to be sent is sent
+        private val ACK_COALESCE_KEY = Any()
+
+        // Signed distance from b to a, taking into account the wrapping of the sequence numbers
+        internal fun sequenceDistance(a: Int, b: Int) = ((a - b) shl 16) shr 16
+
+        private fun nextSequence(sequence: Int) = (sequence + 1) % SEQUENCE_MODULO
+    }
+
+    /**
+     * Sends the frames of the channel through a transport.
+     */
+    interface FrameSender {
+        /**
+         * Send the first [length] bytes of [frame]. The array mustn't be modified until the
+         * returned handle is done.
+         */
+        fun sendFrame(frame: ByteArray, length: Int, priority: SendPriority, coalesceKey: Any?): SendHandle
+    }
+
+    /**
+     * Runs the retransmission and acknowledgement timers of the channel, and gives the time they
+     * are measured with.
+     */
+    internal interface Scheduler {
+        fun uptimeMillis(): Long
+        fun schedule(task: Runnable, delayMs: Long)
+        fun cancel(task: Runnable)
+        fun release()
+    }
+
+    /**
+     * Runs the timers in the thread of the given [handler].
+     */
+    private class HandlerScheduler(private val handler: Handler) : Scheduler {
+        override fun uptimeMillis() = SystemClock.uptimeMillis()
+
+        override fun schedule(task: Runnable, delayMs: Long) {
+            handler.postDelayed(task, delayMs)
+        }
+
+        override fun cancel(task: Runnable) = handler.removeCallbacks(task)
+
+        override fun release() {
+            handler.removeCallbacksAndMessages(null)
+            handler.looper.quit()
+        }
+    }
+
+    /**
+     * Create a channel that sends its frames through the given [frameSender], with its timers
+     * running in a thread of their own.
+     */
+    @JvmOverloads
+    constructor(frameSender: FrameSender,
+                windowSize: Int = DEFAULT_WINDOW_SIZE,
+                retransmitTimeoutMs: Long = DEFAULT_RETRANSMIT_TIMEOUT_MS,
+                maxRetransmissions: Int = DEFAULT_MAX_RETRANSMISSIONS,
+                ackDelayMs: Long = DEFAULT_ACK_DELAY_MS)
+        : this(frameSender, windowSize, retransmitTimeoutMs, maxRetransmissions, ackDelayMs,
+               HandlerScheduler(HandlerUtils.createHandler("reliableChannelHandler")))
+
+    /**
+     * Create a channel that sends its frames through the current connection of the [bluetoothManager].
+     */
+    constructor(bluetoothManager: BluetoothManager) : this(object : FrameSender {
+        override fun sendFrame(frame: ByteArray, length: Int, priority: SendPriority, coalesceKey: Any?) =
+            bluetoothManager.sendMessage(frame, length, priority, coalesceKey)
+    })
+
+    private class OutgoingMessage(val payload: ByteArray, val priority: SendPriority, val sendHandle: SendHandle)
+        : SendHandle.OnSendCompletedListener {
+        var sequence = 0
+        var lastSentUptimeMs = 0L
+        var retransmissions = 0
+        var isSelectivelyAcked = false
+        // Next message completed by the same acknowledgement, only set while completing them
+        var nextCompleted: OutgoingMessage? = null
+
+        // Guarded by this, as the transmissions are completed from the threads of the transport.
+        // The pooled frame is released once the message is done and none of its transmissions is
+        // still waiting to be sent, as the transport reads it without copying it
+        private var frame: PooledByteArray? = null
+        private var queuedTransmissions = 0
+        private var isDone = false
+
+        fun setFrame(frame: PooledByteArray) = synchronized(this) { this.frame = frame }
+
+        fun transmit(frameSender: FrameSender) {
+            val currentFrame = synchronized(this) {
+                queuedTransmissions++
+                frame!!
+            }
+            frameSender.sendFrame(currentFrame.array, currentFrame.length, priority, null).addListener(this)
+        }
+
+        override fun onSendCompleted(handle: SendHandle) {
+            synchronized(this) {
+                queuedTransmissions--
+                releaseFrameIfDone()
+            }
+        }
+
+        /**
+         * Called once the message was acknowledged or failed, it won't be transmitted anymore.
+         */
+        fun finish() {
+            synchronized(this) {
+                isDone = true
+                releaseFrameIfDone()
+            }
+        }
+
+        private fun releaseFrameIfDone() {
+            if (!isDone || queuedTransmissions > 0) return
+            frame?.release()
+            frame = null
+        }
+    }
+
+    /**
+     * Acknowledgement frame that is reused once it was sent or replaced by a newer one, as the
+     * transport reads it without copying it.
+     */
+    private inner class AckFrame : SendHandle.OnSendCompletedListener {
+        val frame: PooledByteArray = ByteArrayPool.SHARED.acquire()
+
+        override fun onSendCompleted(handle: SendHandle) = recycleAckFrame(this)
+    }
+
+    /**
+     * Listener that receives the reliable messages, in order, and the unreliable ones.
+     */
+    @Volatile var listener: BtFrameListener? = null
+
+    /**
+     * Number of reliable messages retransmitted because they weren't acknowledged in time or the
+     * device reported a gap.
+     */
+    @Volatile var retransmissions = 0L
+        private set
+
+    private val retransmitRunnable = Runnable { checkRetransmissions() }
+    private val ackRunnable = Runnable { sendAck() }
+
+    // Sending side, guarded by sendLock
+    private val sendLock = Any()
+    private val inFlight = arrayOfNulls<OutgoingMessage>(windowSize)
+    private var inFlightCount = 0
+    private var oldestUnackedSequence = 0
+    private var nextSendSequence = 0
+    private val backlog = ArrayDeque<OutgoingMessage>()
+
+    // Receiving side, guarded by receiveLock
+    private val receiveLock = Any()
+    private var nextExpectedSequence = 0
+    private val outOfOrder = arrayOfNulls<PooledByteArray>(windowSize)
+    private var isAckScheduled = false
+    @Volatile private var isReleased = false
+
+    // Delivery of the received reliable messages, guarded by deliveryLock. It keeps them in order
+    // without holding the receiveLock while the listener runs
+    private val deliveryLock = Any()
+    private val readyMessages = arrayOfNulls<PooledByteArray>(windowSize)
+    private val frameBufferView = FrameBufferView()
+
+    // Acknowledgement frames not being sent, guarded by itself. It is a leaf lock, as the frames
+    // are returned from the threads of the transport
+    private val freeAckFrames = ArrayDeque<AckFrame>()
+
+    init {
+        // A power of two divides the sequence numbers space, so the window slots don't change when
+        // the sequence numbers wrap
+        require(windowSize in 1..SEQUENCE_MODULO / 2 && windowSize and (windowSize - 1) == 0) {
+            "The window size must be a power of two between 1 and ${SEQUENCE_MODULO / 2}"
+        }
+        require(retransmitTimeoutMs > 0) { "The retransmit timeout must be greater than 0" }
+    }
+
+    /**
+     * Number of reliable messages sent and not acknowledged yet, plus the ones waiting for room in
+     * the window.
+     */
+    val pendingMessages: Int
+        get() = synchronized(sendLock) { inFlightCount + backlog.size }
+
+    /**
+     * Send a message. If it is [reliable] the returned handle is completed once the device
+     * acknowledged it, otherwise once it was sent.
+     */
+    @JvmOverloads
+    fun send(message: String, reliable: Boolean = true, priority: SendPriority = SendPriority.DEFAULT) =
+        send(message.toByteArray(Charsets.UTF_8), reliable, priority)
+
+    /**
+     * Send a message. See [send] with a String message.
+     */
+    @JvmOverloads
+    fun send(message: ByteArray, reliable: Boolean = true, priority: SendPriority = SendPriority.DEFAULT): SendHandle {
+        if (!reliable) return frameSender.sendFrame(message, message.size, priority, null)
+
+        val outgoingMessage = OutgoingMessage(message, priority, SendHandle(message))
+        synchronized(sendLock) {
+            if (inFlightCount < windowSize && backlog.isEmpty()) {
+                transmitNew(outgoingMessage)
+            } else {
+                backlog.addLast(outgoingMessage)
+            }
+        }
+
+        return outgoingMessage.sendHandle
+    }
+
+    /**
+     * Start the sequence numbers over, failing the pending reliable messages, and request the
+     * device to do the same. Call it every time a new connection is established.
+     */
+    fun reset() {
+        resetSendingSide(IOException("The reliable channel was reset"))
+        resetReceivingSide()
+        frameSender.sendFrame(RESET_FRAME, RESET_FRAME.size, SendPriority.URGENT, null)
+    }
+
+    /**
+     * Fail the pending reliable messages and stop the thread of the timers.
+     */
+    fun release() {
+        resetSendingSide(IOException("The reliable channel was released"))
+        resetReceivingSide()
+        scheduler.release()
+
+        synchronized(receiveLock) {
+            if (isReleased) return
+            isReleased = true
+        }
+
+        // The frames being sent are released once they are sent
+        synchronized(freeAckFrames) {
+            while (freeAckFrames.isNotEmpty()) freeAckFrames.pollFirst().frame.release()
+        }
+    }
+
+    override fun onFrameReceived(frame: ByteBuffer) {
+        val start = frame.position()
+        if (frame.remaining() < 2 || frame.get(start) != FRAME_MARK) {
+            listener?.onFrameReceived(frame)
+            return
+        }
+
+        when (frame.get(start + 1)) {
+            DATA_TYPE -> onDataFrame(frame)
+            ACK_TYPE -> onAckFrame(frame)
+            RESET_TYPE -> resetReceivingSide()
+            else -> listener?.onFrameReceived(frame)
+        }
+    }
+
+    /**
+     * Assign the next sequence number to the message and send it. Called with the sendLock held.
+     */
+    private fun transmitNew(message: OutgoingMessage) {
+        message.sequence = nextSendSequence
+        nextSendSequence = nextSequence(nextSendSequence)
+
+        // The header is written in place, the frame is returned to the pool once acknowledged
+        val frame = ByteArrayPool.SHARED.acquire()
+        frame.append(FRAME_MARK)
+        frame.append(DATA_TYPE)
+        appendNumber(frame, message.sequence)
+        frame.append(FIELD_SEPARATOR)
+        frame.append(message.payload)
+        message.setFrame(frame)
+
+        inFlight[message.sequence % windowSize] = message
+        if (inFlightCount++ == 0) scheduler.schedule(retransmitRunnable, retransmitTimeoutMs)
+        transmit(message)
+    }
+
+    private fun transmit(message: OutgoingMessage) {
+        message.lastSentUptimeMs = scheduler.uptimeMillis()
+        message.transmit(frameSender)
+    }
+
+    private fun retransmit(message: OutgoingMessage): Boolean {
+        if (++message.retransmissions > maxRetransmissions) return false
+        retransmissions++
+        transmit(message)
+        return true
+    }
+
+    /**
+     * Retransmit the messages not acknowledged in time, giving up if any of them was
+     * retransmitted too many times. Called from the timer thread.
+     */
+    private fun checkRetransmissions() {
+        var giveUp = false
+        synchronized(sendLock) {
+            val now = scheduler.uptimeMillis()
+            var sequence = oldestUnackedSequence
+            for (i in 0 until inFlightCount) {
+                val message = inFlight[sequence % windowSize]
+                if (message != null && !message.isSelectivelyAcked
+                    && now - message.lastSentUptimeMs >= retransmitTimeoutMs && !retransmit(message)) {
+                    giveUp = true
+                    break
+                }
+                sequence = nextSequence(sequence)
+            }
+
+            if (!giveUp && inFlightCount > 0) scheduler.schedule(retransmitRunnable, retransmitTimeoutMs / 2 + 1)
+        }
+
+        if (giveUp) {
+            Log.w(LOG_TAG, "A reliable message wasn't acknowledged after $maxRetransmissions retransmissions")
+            resetSendingSide(IOException("The message wasn't acknowledged after $maxRetransmissions retransmissions"))
+            frameSender.sendFrame(RESET_FRAME, RESET_FRAME.size, SendPriority.URGENT, null)
+        }
+    }
+
+    /**
+     * Process an acknowledgement, `~a<next>[:<seq>,<seq>...]`. Called from the receiving thread.
+     */
+    private fun onAckFrame(frame: ByteBuffer) {
+        val start = frame.position()
+        val end = frame.limit()
+        var fieldEnd = start + 2
+        while (fieldEnd < end && frame.get(fieldEnd) != FIELD_SEPARATOR) fieldEnd++
+        val nextExpected = parseSequence(frame, start + 2, fieldEnd)
+        if (nextExpected == SEQUENCE_MODULO) {
+            Log.w(LOG_TAG, "Invalid acknowledgement received")
+            return
+        }
+
+        // The acknowledged messages are chained, so they are completed without holding the lock
+        var firstCompleted: OutgoingMessage? = null
+        var lastCompleted: OutgoingMessage? = null
+        synchronized(sendLock) {
+            // Cumulative acknowledgement
+            val ackedCount = sequenceDistance(nextExpected, oldestUnackedSequence)
+            if (ackedCount in 1..inFlightCount) {
+                for (i in 0 until ackedCount) {
+                    val index = oldestUnackedSequence % windowSize
+                    inFlight[index]?.let {
+                        if (lastCompleted == null) firstCompleted = it else lastCompleted!!.nextCompleted = it
+                        lastCompleted = it
+                    }
+                    inFlight[index] = null
+                    oldestUnackedSequence = nextSequence(oldestUnackedSequence)
+                }
+                inFlightCount -= ackedCount
+            }
+
+            // Selective acknowledgements, the messages between the gaps are retransmitted
+            var highestSelectiveAck = -1
+            var sackStart = fieldEnd + 1
+            while (sackStart < end) {
+                var sackEnd = sackStart
+                while (sackEnd < end && frame.get(sackEnd) != SACK_SEPARATOR) sackEnd++
+                val sequence = parseSequence(frame, sackStart, sackEnd)
+                val distance = if (sequence == SEQUENCE_MODULO) -1 else sequenceDistance(sequence, oldestUnackedSequence)
+                if (distance in 0 until inFlightCount) {
+                    inFlight[sequence % windowSize]?.isSelectivelyAcked = true
+                    highestSelectiveAck = Math.max(highestSelectiveAck, distance)
+                }
+                sackStart = sackEnd + 1
+            }
+
+            val now = scheduler.uptimeMillis()
+            var sequence = oldestUnackedSequence
+            for (i in 0 until highestSelectiveAck) {
+                val message = inFlight[sequence % windowSize]
+                // Don't retransmit again the messages just retransmitted
+                if (message != null && !message.isSelectivelyAcked
+                    && now - message.lastSentUptimeMs >= retransmitTimeoutMs / 4) retransmit(message)
+                sequence = nextSequence(sequence)
+            }
+
+            // Fill the room left in the window
+            while (inFlightCount < windowSize && backlog.isNotEmpty()) transmitNew(backlog.pollFirst())
+            if (inFlightCount == 0) scheduler.cancel(retransmitRunnable)
+        }
+
+        var message = firstCompleted
+        while (message != null) {
+            val next = message.nextCompleted
+            message.nextCompleted = null
+            message.finish()
+            message.sendHandle.complete()
+            message = next
+        }
+    }
+
+    /**
+     * Process a reliable message, `~d<seq>:<payload>`, delivering it and the following ones
+     * received before it in order. Called from the receiving thread.
+     */
+    private fun onDataFrame(frame: ByteBuffer) {
+        val start = frame.position()
+        val end = frame.limit()
+        var separator = start + 2
+        while (separator < end && frame.get(separator) != FIELD_SEPARATOR) separator++
+
+        val sequence = if (separator == end) SEQUENCE_MODULO else parseSequence(frame, start + 2, separator)
+        if (sequence == SEQUENCE_MODULO) {
+            Log.w(LOG_TAG, "Invalid reliable message received")
+            return
+        }
+
+        synchronized(deliveryLock) {
+            var readyCount = 0
+            synchronized(receiveLock) {
+                val distance = sequenceDistance(sequence, nextExpectedSequence)
+                when {
+                    distance == 0 -> {
+                        nextExpectedSequence = nextSequence(nextExpectedSequence)
+                        readyCount = takeBufferedMessages()
+                        scheduleAck(ackDelayMs)
+                    }
+                    distance in 1 until windowSize -> {
+                        // Keep it until the missing ones arrive, and report the gap right away
+                        val index = sequence % windowSize
+                        if (outOfOrder[index] == null) {
+                            outOfOrder[index] = copyFrame(frame, separator + 1)
+                        }
+                        scheduleAck(0)
+                        return
+                    }
+                    else -> {
+                        // Duplicate of a message already delivered, its acknowledgement was lost
+                        scheduleAck(0)
+                        return
+                    }
+                }
+            }
+
+            // The received frame is a reused view, so its payload is delivered without copying it
+            frame.position(separator + 1)
+            listener?.onFrameReceived(frame)
+            for (i in 0 until readyCount) {
+                val message = readyMessages[i]!!
+                readyMessages[i] = null
+                listener?.onFrameReceived(frameBufferView.wrap(message.array, 0, message.length))
+                message.release()
+            }
+        }
+    }
+
+    /**
+     * Move the buffered messages that follow the next expected one to [readyMessages], returning
+     * how many were moved. Called with the deliveryLock and the receiveLock held.
+     */
+    private fun takeBufferedMessages(): Int {
+        var count = 0
+        while (true) {
+            val index = nextExpectedSequence % windowSize
+            val message = outOfOrder[index] ?: return count
+            outOfOrder[index] = null
+            nextExpectedSequence = nextSequence(nextExpectedSequence)
+            readyMessages[count++] = message
+        }
+    }
+
+    /**
+     * Parse the sequence number between [start] and [end] of [frame] in place. Returns
+     * [SEQUENCE_MODULO] if it isn't a valid sequence number.
+     */
+    private fun parseSequence(frame: ByteBuffer, start: Int, end: Int): Int {
+        if (start == end) return SEQUENCE_MODULO
+
+        var sequence = 0
+        for (i in start until end) {
+            val digit = frame.get(i) - '0'.toByte()
+            if (digit < 0 || digit > 9) return SEQUENCE_MODULO
+            sequence = sequence * 10 + digit
+            if (sequence >= SEQUENCE_MODULO) return SEQUENCE_MODULO
+        }
+        return sequence
+    }
+
+    /**
+     * Schedule the acknowledgement of the received messages. Called with the receiveLock held.
+     */
+    private fun scheduleAck(delayMs: Long) {
+        if (delayMs == 0L) {
+            scheduler.cancel(ackRunnable)
+            scheduler.schedule(ackRunnable, 0)
+            isAckScheduled = true
+        } else if (!isAckScheduled) {
+            scheduler.schedule(ackRunnable, delayMs)
+            isAckScheduled = true
+        }
+    }
+
+    /**
+     * Send the acknowledgement of the received messages. Called from the timer thread.
+     */
+    private fun sendAck() {
+        val ackFrame = synchronized(receiveLock) {
+            isAckScheduled = false
+            if (isReleased) return
+
+            val ackFrame = synchronized(freeAckFrames) { freeAckFrames.pollFirst() } ?: AckFrame()
+            val ack = ackFrame.frame
+            ack.clear()
+            ack.append(FRAME_MARK)
+            ack.append(ACK_TYPE)
+            appendNumber(ack, nextExpectedSequence)
+
+            var separator = FIELD_SEPARATOR
+            var sequence = nextSequence(nextExpectedSequence)
+            for (i in 1 until windowSize) {
+                if (outOfOrder[sequence % windowSize] != null) {
+                    ack.append(separator)
+                    appendNumber(ack, sequence)
+                    separator = SACK_SEPARATOR
+                }
+                sequence = nextSequence(sequence)
+            }
+
+            ackFrame
+        }
+
+        val ack = ackFrame.frame
+        frameSender.sendFrame(ack.array, ack.length, SendPriority.URGENT, ACK_COALESCE_KEY).addListener(ackFrame)
+    }
+
+    private fun recycleAckFrame(ackFrame: AckFrame) {
+        synchronized(freeAckFrames) {
+            if (isReleased) ackFrame.frame.release() else freeAckFrames.addLast(ackFrame)
+        }
+    }
+
+    private fun appendNumber(destination: PooledByteArray, number: Int) {
+        var divisor = 1
+        while (divisor * 10 <= number) divisor *= 10
+        while (divisor > 0) {
+            destination.append(('0'.toInt() + number / divisor % 10).toByte())
+            divisor /= 10
+        }
+    }
+
+    private fun copyFrame(frame: ByteBuffer, start: Int): PooledByteArray {
+        val copy = ByteArrayPool.SHARED.acquire()
+        copy.ensureCapacity(frame.limit() - start)
+        for (i in start until frame.limit()) copy.append(frame.get(i))
+        return copy
+    }
+
+    private fun resetSendingSide(cause: Exception) {
+        val failedMessages = mutableListOf<OutgoingMessage>()
+        synchronized(sendLock) {
+            for (i in inFlight.indices) {
+                inFlight[i]?.let { failedMessages.add(it) }
+                inFlight[i] = null
+            }
+            failedMessages.addAll(backlog)
+            backlog.clear()
+            inFlightCount = 0
+            oldestUnackedSequence = 0
+            nextSendSequence = 0
+            scheduler.cancel(retransmitRunnable)
+        }
+
+        failedMessages.forEach {
+            it.finish()
+            it.sendHandle.fail(cause)
+        }
+    }
+
+    private fun resetReceivingSide() {
+        synchronized(receiveLock) {
+            nextExpectedSequence = 0
+            for (i in outOfOrder.indices) {
+                outOfOrder[i]?.release()
+                outOfOrder[i] = null
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.telemetry
+
+import com.bq.robotic.droid2ino.communication.framing.AsciiNumberParser
+
+/**
+ * [TelemetryChannel] of integer values.
+ */
+class IntTelemetryChannel internal constructor(name: String, fieldIndex: Int, capacity: Int)
+    : TelemetryChannel(name, fieldIndex, capacity) {
+
+    private val values = IntArray(capacity)
+
+    /**
+     * Value of the last sample, or [defaultValue] if there isn't any sample yet.
+     */
+    fun lastValue(defaultValue: Int): Int = synchronized(this) {
+        if (size == 0) defaultValue else values[previousIndex(writeIndex)]
+    }
+
+    /**
+     * Copy the last [maxSamples] samples, from the oldest to the newest, to [destinationValues]
+     * and their timestamps to [destinationTimestamps] if it isn't null. Fewer samples are copied
+     * if there aren't enough samples or they don't fit in the destination arrays.
+     *
+     * @return the number of samples copied
+     */
+    @JvmOverloads
+    fun readWindow(destinationValues: IntArray, destinationTimestamps: LongArray? = null,
+                   maxSamples: Int = destinationValues.size): Int = synchronized(this) {
+        val count = windowSize(maxSamples, destinationValues.size, destinationTimestamps)
+        val start = windowStart(count)
+        copyFromRing(values, start, destinationValues, count)
+        copyTimestamps(start, destinationTimestamps, count)
+        count
+    }
+
+    override fun parseAndStore(data: ByteArray, start: Int, end: Int): Boolean {
+        val value = AsciiNumberParser.parseInt(data, start, end)
+        if (value == AsciiNumberParser.INVALID_INT) return false
+
+        values[writeIndex] = value.toInt()
+        return true
+    }
+}
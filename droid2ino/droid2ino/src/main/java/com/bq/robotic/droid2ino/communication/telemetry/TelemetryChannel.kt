@@ -0,0 +1,146 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.telemetry
+
+/**
+ * Channel of numeric samples decoded from a field of the received telemetry messages. The samples
+ * and their timestamps are stored in preallocated ring buffers of primitive values, so keeping the
+ * last [capacity] samples doesn't create any object per sample.
+ *
+ * The samples are written from the thread receiving the messages and they can be read from any
+ * thread.
+ */
+abstract class TelemetryChannel internal constructor(
+    /**
+     * Name of the channel, only used for identifying it.
+     */
+    val name: String,
+    /**
+     * Position of the field of the telemetry messages that contains the values of this channel,
+     * starting at 0.
+     */
+    val fieldIndex: Int,
+    /**
+     * Max number of samples stored. The oldest samples are overwritten by the new ones.
+     */
+    val capacity: Int) {
+
+    // Guarded by this
+    protected val timestamps = LongArray(capacity)
+    // Position where the next sample will be written
+    protected var writeIndex = 0
+    private var storedSamples = 0
+    private var receivedSamples = 0L
+    private var invalidSamples = 0L
+
+    init {
+        require(fieldIndex >= 0) { "The field index can not be negative" }
+        require(capacity > 0) { "The capacity must be greater than 0" }
+    }
+
+    /**
+     * Number of samples currently stored, at most [capacity].
+     */
+    val size: Int
+        get() = synchronized(this) { storedSamples }
+
+    /**
+     * Number of samples received since the channel was created, including the overwritten ones.
+     */
+    val totalSamples: Long
+        get() = synchronized(this) { receivedSamples }
+
+    /**
+     * Number of fields that couldn't be parsed as a number of the type of this channel.
+     */
+    val parseErrors: Long
+        get() = synchronized(this) { invalidSamples }
+
+    /**
+     * Timestamp, in [android.os.SystemClock.elapsedRealtime] milliseconds, of the last sample, or
+     * -1 if there isn't any sample yet.
+     */
+    val lastTimestamp: Long
+        get() = synchronized(this) {
+            if (storedSamples == 0) -1L else timestamps[previousIndex(writeIndex)]
+        }
+
+    /**
+     * Discard all the stored samples.
+     */
+    fun clear() {
+        synchronized(this) {
+            writeIndex = 0
+            storedSamples = 0
+        }
+    }
+
+    /**
+     * Parse the field between [start] and [end] of the received message and store it as a new
+     * sample. Called from the thread receiving the messages.
+     */
+    internal fun addSample(data: ByteArray, start: Int, end: Int, timestamp: Long) {
+        synchronized(this) {
+            if (!parseAndStore(data, start, end)) {
+                invalidSamples++
+                return
+            }
+
+            timestamps[writeIndex] = timestamp
+            writeIndex = nextIndex(writeIndex)
+            if (storedSamples < capacity) storedSamples++
+            receivedSamples++
+        }
+    }
+
+    /**
+     * Parse the field and store its value at [writeIndex]. Returns false if it isn't valid.
+     */
+    protected abstract fun parseAndStore(data: ByteArray, start: Int, end: Int): Boolean
+
+    /**
+     * Number of samples of the window of the last [maxSamples] samples that fit in the destination
+     * arrays. The index of the oldest of them is at [windowStart].
+     */
+    protected fun windowSize(maxSamples: Int, destinationSize: Int, destinationTimestamps: LongArray?) =
+        minOf(minOf(maxSamples, storedSamples, destinationSize), destinationTimestamps?.size ?: Int.MAX_VALUE)
+
+    protected fun windowStart(windowSize: Int) =
+        (writeIndex - windowSize + capacity) % capacity
+
+    /**
+     * Copy [count] elements of a ring buffer of this channel, starting at [start], to [destination]
+     * handling the wrap around.
+     */
+    protected fun copyFromRing(source: Any, start: Int, destination: Any, count: Int) {
+        val firstPart = Math.min(count, capacity - start)
+        System.arraycopy(source, start, destination, 0, firstPart)
+        if (firstPart < count) System.arraycopy(source, 0, destination, firstPart, count - firstPart)
+    }
+
+    protected fun copyTimestamps(start: Int, destination: LongArray?, count: Int) {
+        destination?.let { copyFromRing(timestamps, start, it, count) }
+    }
+
+    private fun nextIndex(index: Int) = if (index + 1 == capacity) 0 else index + 1
+
+    protected fun previousIndex(index: Int) = if (index == 0) capacity - 1 else index - 1
+}
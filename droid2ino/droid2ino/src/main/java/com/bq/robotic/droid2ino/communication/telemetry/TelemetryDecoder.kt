@@ -0,0 +1,146 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.bq.robotic.droid2ino.communication.telemetry
+
+import android.os.SystemClock
+import com.bq.robotic.droid2ino.communication.BtFrameListener
+import java.nio.ByteBuffer
+
+/**
+ * Decodes the periodic numeric values sent by the board as text messages, such as `12,0.53,-4`,
+ * into [TelemetryChannel]s. The fields are parsed directly from the received bytes, so no String,
+ * boxed number nor any other object is created per message or per sample.
+ *
+ * Set it as the [BtFrameListener] of the [com.bq.robotic.droid2ino.communication.BluetoothManager]
+ * after declaring the channels. If the board sends other messages too, set a [prefix] that marks
+ * the telemetry messages and a [passthroughListener] that will receive the rest of them.
+ */
+class TelemetryDecoder @JvmOverloads constructor(
+    /**
+     * Separator between the fields of the telemetry messages.
+     */
+    private val separator: Char = DEFAULT_SEPARATOR,
+    /**
+     * Optional text at the beginning of the telemetry messages. It isn't part of the first field.
+     */
+    prefix: String? = null) : BtFrameListener {
+
+    companion object {
+        const val DEFAULT_SEPARATOR = ','
+        const val DEFAULT_CAPACITY = 256
+        private const val INITIAL_MESSAGE_SIZE = 64
+    }
+
+    private val prefixBytes = prefix?.toByteArray(Charsets.US_ASCII) ?: ByteArray(0)
+    private val separatorByte = separator.toByte()
+
+    // Channels indexed by the position of their field, replaced on each declaration so the receiving
+    // thread never sees an array being modified
+    @Volatile private var channelsByField = arrayOfNulls<TelemetryChannel>(0)
+    private var message = ByteArray(INITIAL_MESSAGE_SIZE)
+
+    /**
+     * Listener that receives the messages that don't start with the prefix.
+     */
+    @Volatile var passthroughListener: BtFrameListener? = null
+
+    /**
+     * Number of messages ignored because they don't start with the prefix.
+     */
+    @Volatile var ignoredMessages = 0L
+        private set
+
+    init {
+        require(separator.toInt() in 1..0x7F) { "The separator must be an ASCII character" }
+    }
+
+    /**
+     * Declare a channel of integer values read from the field at [fieldIndex] of each message.
+     */
+    @JvmOverloads
+    fun declareIntChannel(name: String, fieldIndex: Int, capacity: Int = DEFAULT_CAPACITY) =
+        IntTelemetryChannel(name, fieldIndex, capacity).also { addChannel(it) }
+
+    /**
+     * Declare a channel of decimal values read from the field at [fieldIndex] of each message.
+     */
+    @JvmOverloads
+    fun declareFloatChannel(name: String, fieldIndex: Int, capacity: Int = DEFAULT_CAPACITY) =
+        FloatTelemetryChannel(name, fieldIndex, capacity).also { addChannel(it) }
+
+    /**
+     * Get the declared channel with the given name or null if there isn't any.
+     */
+    fun getChannel(name: String): TelemetryChannel? = channelsByField.firstOrNull { it?.name == name }
+
+    @Synchronized
+    private fun addChannel(channel: TelemetryChannel) {
+        val currentChannels = channelsByField
+        require(currentChannels.getOrNull(channel.fieldIndex) == null) {
+            "There is already a channel for the field ${channel.fieldIndex}"
+        }
+
+        val newChannels = currentChannels.copyOf(Math.max(currentChannels.size, channel.fieldIndex + 1))
+        newChannels[channel.fieldIndex] = channel
+        channelsByField = newChannels
+    }
+
+    override fun onFrameReceived(frame: ByteBuffer) {
+        if (!hasPrefix(frame)) {
+            ignoredMessages++
+            passthroughListener?.onFrameReceived(frame)
+            return
+        }
+
+        val length = frame.remaining() - prefixBytes.size
+        if (message.size < length) message = ByteArray(Integer.highestOneBit(length) shl 1)
+        // Absolute reads, so no view of the frame is allocated for each message
+        val start = frame.position() + prefixBytes.size
+        for (i in 0 until length) message[i] = frame.get(start + i)
+
+        decodeFields(message, length, SystemClock.elapsedRealtime())
+    }
+
+    private fun hasPrefix(frame: ByteBuffer): Boolean {
+        if (frame.remaining() < prefixBytes.size) return false
+        val start = frame.position()
+        for (i in 0 until prefixBytes.size) {
+            if (frame.get(start + i) != prefixBytes[i]) return false
+        }
+        return true
+    }
+
+    private fun decodeFields(data: ByteArray, length: Int, timestamp: Long) {
+        val channels = channelsByField
+        var fieldIndex = 0
+        var fieldStart = 0
+
+        while (fieldIndex < channels.size && fieldStart <= length) {
+            var fieldEnd = fieldStart
+            while (fieldEnd < length && data[fieldEnd] != separatorByte) fieldEnd++
+
+            channels[fieldIndex]?.addSample(data, fieldStart, fieldEnd, timestamp)
+
+            fieldIndex++
+            fieldStart = fieldEnd + 1
+        }
+    }
+}
@@ -41,6 +41,18 @@ public class Droid2InoConstants {
    public static final int MESSAGE_SENT = 3;
    public static final int MESSAGE_DEVICE_NAME = 4;
    public static final int MESSAGE_ERROR = 5;
+   public static final int MESSAGE_RECEIVED_BATCH = 6;
+
+   /**
+    * Flags of the events a listener can subscribe to. The events without subscription aren't even
+    * produced by the connection threads. The errors are always delivered.
+    */
+   public static final int EVENT_STATE_CHANGE = 1;
+   public static final int EVENT_MESSAGE_RECEIVED = 1 << 1;
+   public static final int EVENT_MESSAGE_SENT = 1 << 2;
+   public static final int EVENT_DEVICE_NAME = 1 << 3;
+   public static final int EVENT_ALL = EVENT_STATE_CHANGE | EVENT_MESSAGE_RECEIVED | EVENT_MESSAGE_SENT
+      | EVENT_DEVICE_NAME;
 
    /**
     * Key names received from the BluetoothConnection Handler
@@ -81,6 +93,8 @@ public class Droid2InoConstants {
    // Read delimiters
    public static final String START_READ_DELIMITER = "&&";
    public static final String END_READ_DELIMITER = "%%";
+   // Max size of a read message, longer messages are discarded
+   public static final int MAX_READ_MESSAGE_SIZE = 4096;
 
    // Debug
    public static final boolean DEBUG = BuildConfig.DEBUG;
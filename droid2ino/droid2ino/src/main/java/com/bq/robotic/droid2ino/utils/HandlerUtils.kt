@@ -9,11 +9,12 @@ import android.os.HandlerThread
 object HandlerUtils {
     /**
      * Create and start a new [Handler] with a looper from a new [HandlerThread] with the name
-     * passed by parameter.
+     * passed by parameter. The optional [callback] receives the messages sent to the handler.
      */
-    fun createHandler(name: String): Handler {
+    @JvmOverloads
+    fun createHandler(name: String, callback: Handler.Callback? = null): Handler {
         val handlerThread = HandlerThread(name)
         handlerThread.start()
-        return Handler(handlerThread.looper)
+        return Handler(handlerThread.looper, callback)
     }
 }
\ No newline at end of file
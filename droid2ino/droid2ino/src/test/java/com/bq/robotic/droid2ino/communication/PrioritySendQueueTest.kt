@@ -0,0 +1,82 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class PrioritySendQueueTest {
+    private val queue = PrioritySendQueue<String>()
+
+    private fun pollAll() = generateSequence { queue.poll() }.toList()
+
+    @Test
+    fun pollsTheHighestPriorityFirstInOrder() {
+        queue.offer("bulk", SendPriority.BULK)
+        queue.offer("control 1", SendPriority.CONTROL)
+        queue.offer("urgent", SendPriority.URGENT)
+        queue.offer("control 2", SendPriority.CONTROL)
+
+        assertEquals(4, queue.size)
+        assertEquals(listOf("urgent", "control 1", "control 2", "bulk"), pollAll())
+        assertNull(queue.pollEntry())
+    }
+
+    @Test
+    fun coalescedMessageKeepsItsPlace() {
+        assertNull(queue.offer("x=1", SendPriority.CONTROL, "x"))
+        queue.offer("y=1", SendPriority.CONTROL, "y")
+
+        assertEquals("x=1", queue.offer("x=2", SendPriority.CONTROL, "x"))
+        assertEquals(listOf("x=2", "y=1"), pollAll())
+    }
+
+    @Test
+    fun coalescesOnlyWithinTheSameLane() {
+        queue.offer("x=1", SendPriority.BULK, "x")
+
+        assertNull(queue.offer("x=2", SendPriority.URGENT, "x"))
+        assertEquals(listOf("x=2", "x=1"), pollAll())
+    }
+
+    @Test
+    fun sentMessageIsNotReplaced() {
+        queue.offer("x=1", SendPriority.CONTROL, "x")
+        val entry = queue.pollEntry()!!
+
+        assertNull(queue.offer("x=2", SendPriority.CONTROL, "x"))
+        assertEquals("x=1", entry.message)
+        assertEquals(SendPriority.CONTROL, entry.priority)
+        assertEquals(listOf("x=2"), pollAll())
+    }
+
+    @Test
+    fun clearReturnsThePendingMessages() {
+        queue.offer("a", SendPriority.BULK)
+        queue.offer("b", SendPriority.URGENT, "b")
+
+        assertEquals(listOf("b", "a"), queue.clear())
+        assertEquals(0, queue.size)
+        assertNull(queue.offer("b2", SendPriority.URGENT, "b"))
+    }
+}
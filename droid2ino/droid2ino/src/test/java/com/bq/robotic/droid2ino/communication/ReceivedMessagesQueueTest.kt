@@ -0,0 +1,100 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class ReceivedMessagesQueueTest {
+    // The streams are identified by the text before the colon, the other messages have no key
+    private val keyExtractor = object : ReceivedMessagesDispatcher.MessageKeyExtractor {
+        override fun keyOf(message: String) = message.substringBefore(':', "").takeIf { it.isNotEmpty() }
+    }
+
+    @Test
+    fun roundsTheCapacityToAPowerOfTwo() {
+        assertEquals(4, ReceivedMessagesQueue(3, ReceiveQueuePolicy.DROP_OLDEST, null).capacity)
+        assertEquals(8, ReceivedMessagesQueue(8, ReceiveQueuePolicy.DROP_OLDEST, null).capacity)
+        assertEquals(1, ReceivedMessagesQueue(1, ReceiveQueuePolicy.DROP_OLDEST, null).capacity)
+    }
+
+    @Test
+    fun dropOldestDiscardsTheOldestMessages() {
+        val queue = ReceivedMessagesQueue(4, ReceiveQueuePolicy.DROP_OLDEST, null)
+        (1..6).forEach { queue.offer("m$it") }
+
+        assertEquals(listOf("m3", "m4", "m5", "m6"), queue.drain())
+        assertEquals(2L, queue.droppedMessages)
+        assertEquals(0, queue.size())
+    }
+
+    @Test
+    fun latestPerKeyReplacesThePendingMessageInItsPlace() {
+        val queue = ReceivedMessagesQueue(4, ReceiveQueuePolicy.LATEST_PER_KEY, keyExtractor)
+        listOf("a:1", "b:1", "log", "a:2", "log", "a:3").forEach { queue.offer(it) }
+
+        assertEquals(listOf("a:3", "b:1", "log", "log"), queue.drain())
+        assertEquals(2L, queue.droppedMessages)
+
+        // Once delivered, a key starts over at the end of the queue
+        listOf("b:2", "a:4").forEach { queue.offer(it) }
+        assertEquals(listOf("b:2", "a:4"), queue.drain())
+    }
+
+    @Test
+    fun latestPerKeyDiscardsTheOldestKeyWhenFull() {
+        val queue = ReceivedMessagesQueue(2, ReceiveQueuePolicy.LATEST_PER_KEY, keyExtractor)
+        listOf("a:1", "b:1", "c:1", "a:2").forEach { queue.offer(it) }
+
+        assertEquals(listOf("c:1", "a:2"), queue.drain())
+        assertEquals(2L, queue.droppedMessages)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun latestPerKeyRequiresAKeyExtractor() {
+        ReceivedMessagesQueue(4, ReceiveQueuePolicy.LATEST_PER_KEY, null)
+    }
+
+    @Test
+    fun blockProducerWaitsUntilThereIsRoom() {
+        val queue = ReceivedMessagesQueue(2, ReceiveQueuePolicy.BLOCK_PRODUCER, null)
+        val offered = CountDownLatch(1)
+        val producer = Thread {
+            (1..3).forEach { queue.offer("m$it") }
+            offered.countDown()
+        }
+        producer.start()
+
+        assertFalse(offered.await(100, TimeUnit.MILLISECONDS))
+        // The producer may add the last message while the first ones are drained
+        val drained = queue.drain()
+        assertEquals(listOf("m1", "m2"), drained.take(2))
+        assertTrue(offered.await(1, TimeUnit.SECONDS))
+        assertEquals(listOf("m1", "m2", "m3"), drained + queue.drain())
+        assertEquals(0L, queue.droppedMessages)
+        producer.join()
+    }
+}
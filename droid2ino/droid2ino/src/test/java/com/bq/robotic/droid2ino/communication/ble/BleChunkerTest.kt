@@ -0,0 +1,83 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.ble
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class BleChunkerTest {
+
+    private fun split(chunker: BleChunker, frame: ByteArray): List<ByteArray> {
+        val chunks = mutableListOf<ByteArray>()
+        var offset = 0
+        while (offset < frame.size) {
+            val size = chunker.nextChunkSize(frame, offset, frame.size)
+            chunks.add(chunker.copyChunk(frame, offset, size).copyOf())
+            offset += size
+        }
+        return chunks
+    }
+
+    @Test
+    fun splitsInChunksOfTheMaxSize() {
+        val chunks = split(BleChunker(4), "0123456789".toByteArray())
+
+        assertEquals(listOf("0123", "4567", "89"), chunks.map { String(it) })
+    }
+
+    @Test
+    fun keepsTheUtf8SequencesTogether() {
+        val text = "añ€𝄞b"
+        val chunks = split(BleChunker(4), text.toByteArray(Charsets.UTF_8))
+
+        assertEquals(listOf("añ", "€", "𝄞", "b"), chunks.map { String(it, Charsets.UTF_8) })
+    }
+
+    @Test
+    fun splitsAnywhereTheBinaryFrames() {
+        val chunker = BleChunker(4)
+        chunker.keepUtf8Sequences = false
+        val frame = "ñññ".toByteArray(Charsets.UTF_8)
+
+        assertEquals(listOf(4, 2), split(chunker, frame).map { it.size })
+    }
+
+    @Test
+    fun leavesRoomForTheHeader() {
+        val chunker = BleChunker(4)
+        chunker.headerSize = 1
+        val frame = "abcdef".toByteArray()
+
+        val chunk = chunker.copyChunk(frame, 0, chunker.nextChunkSize(frame, 0, frame.size))
+        assertArrayEquals(byteArrayOf(0) + "abc".toByteArray(), chunk)
+    }
+
+    @Test
+    fun reusesTheChunkOfEachSize() {
+        val chunker = BleChunker(4)
+        val frame = "abcdefgh".toByteArray()
+
+        assertSame(chunker.copyChunk(frame, 0, 4), chunker.copyChunk(frame, 4, 4))
+    }
+}
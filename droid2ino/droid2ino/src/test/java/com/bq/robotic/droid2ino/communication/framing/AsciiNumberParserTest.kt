@@ -0,0 +1,74 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class AsciiNumberParserTest {
+
+    private fun parseInt(text: String) = text.toByteArray().let { AsciiNumberParser.parseInt(it, 0, it.size) }
+
+    private fun parseFloat(text: String) = text.toByteArray().let { AsciiNumberParser.parseFloat(it, 0, it.size) }
+
+    @Test
+    fun parsesTheIntegers() {
+        assertEquals(42L, parseInt("42"))
+        assertEquals(-7L, parseInt(" -7 \r\n"))
+        assertEquals(5L, parseInt("+5"))
+        assertEquals(Int.MAX_VALUE.toLong(), parseInt("2147483647"))
+        assertEquals(Int.MIN_VALUE.toLong(), parseInt("-2147483648"))
+    }
+
+    @Test
+    fun rejectsTheInvalidIntegers() {
+        listOf("", " ", "-", "4x", "1.5", "2147483648", "-2147483649", "99999999999999999999").forEach {
+            assertEquals("\"$it\"", AsciiNumberParser.INVALID_INT, parseInt(it))
+        }
+    }
+
+    @Test
+    fun parsesOnlyTheGivenRange() {
+        val data = "12,345".toByteArray()
+
+        assertEquals(12L, AsciiNumberParser.parseInt(data, 0, 2))
+        assertEquals(345L, AsciiNumberParser.parseInt(data, 3, data.size))
+    }
+
+    @Test
+    fun parsesTheDecimalNumbers() {
+        assertEquals(3.25f, parseFloat("3.25"), 0f)
+        assertEquals(-0.5f, parseFloat(" -.5\n"), 0f)
+        assertEquals(1500f, parseFloat("1.5e3"), 0f)
+        assertEquals(0.015f, parseFloat("1.5E-2"), 1e-9f)
+        assertEquals(12f, parseFloat("12."), 0f)
+        assertEquals(1.2345679e20f, parseFloat("123456789012345678901"), 1e13f)
+    }
+
+    @Test
+    fun rejectsTheInvalidDecimalNumbers() {
+        listOf("", ".", "-", "1.2.3", "1e", "1x", "e5").forEach {
+            assertTrue("\"$it\"", parseFloat(it).isNaN())
+        }
+    }
+}
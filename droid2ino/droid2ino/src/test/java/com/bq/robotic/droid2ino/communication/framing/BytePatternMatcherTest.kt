@@ -0,0 +1,55 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class BytePatternMatcherTest {
+
+    private fun matchPositions(pattern: String, stream: String): List<Int> {
+        val matcher = BytePatternMatcher(pattern.toByteArray())
+        return stream.toByteArray().withIndex().filter { matcher.matches(it.value) }.map { it.index }
+    }
+
+    @Test
+    fun findsThePatternAfterAPartialMatch() {
+        assertEquals(listOf(3), matchPositions("&&", "&x&&"))
+        assertEquals(listOf(6), matchPositions("abab", "abaabab"))
+        assertEquals(listOf(4), matchPositions("aab", "aaaab"))
+    }
+
+    @Test
+    fun neverOverlapsTheMatches() {
+        assertEquals(listOf(1, 3), matchPositions("%%", "%%%%%"))
+    }
+
+    @Test
+    fun resetForgetsThePartialMatch() {
+        val matcher = BytePatternMatcher("ab".toByteArray())
+        matcher.matches('a'.toByte())
+        assertEquals(1, matcher.matchedLength)
+
+        matcher.reset()
+        assertEquals(false, matcher.matches('b'.toByte()))
+    }
+}
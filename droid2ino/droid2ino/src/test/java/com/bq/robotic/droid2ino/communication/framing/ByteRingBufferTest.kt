@@ -0,0 +1,65 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ByteRingBufferTest {
+
+    @Test
+    fun storesOnlyWhatFits() {
+        val ringBuffer = ByteRingBuffer(4)
+
+        assertEquals(4, ringBuffer.write("abcdef".toByteArray(), 0, 6))
+        assertTrue(ringBuffer.isFull())
+        assertEquals(0, ringBuffer.write("g".toByteArray(), 0, 1))
+    }
+
+    @Test
+    fun readsTheBytesAcrossTheWrapAround() {
+        val ringBuffer = ByteRingBuffer(5)
+        ringBuffer.write("abcd".toByteArray(), 0, 4)
+        ringBuffer.skip(3)
+        ringBuffer.write("efgh".toByteArray(), 0, 4)
+
+        assertEquals(5, ringBuffer.size)
+        assertEquals('d'.toByte(), ringBuffer[0])
+        assertEquals('h'.toByte(), ringBuffer[4])
+
+        val copy = ByteArray(6)
+        ringBuffer.copyTo(1, copy, 1, 4)
+        assertArrayEquals(byteArrayOf(0) + "efgh".toByteArray() + byteArrayOf(0), copy)
+    }
+
+    @Test
+    fun skippingEverythingEmptiesIt() {
+        val ringBuffer = ByteRingBuffer(3)
+        ringBuffer.write("abc".toByteArray(), 0, 3)
+        ringBuffer.skip(5)
+
+        assertEquals(0, ringBuffer.size)
+        assertEquals(3, ringBuffer.remaining())
+    }
+}
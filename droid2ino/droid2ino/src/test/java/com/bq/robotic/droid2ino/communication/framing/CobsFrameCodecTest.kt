@@ -0,0 +1,76 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class CobsFrameCodecTest {
+    private val codec = CobsFrameCodec(1024)
+
+    private fun assertRoundTrip(payload: ByteArray) {
+        val frame = codec.encode(payload, 0, payload.size)
+
+        // The only zero byte is the delimiter at the end of the frame
+        assertEquals(frame.size - 1, frame.indexOfFirst { it == 0.toByte() })
+        val decodedFrames = DecodedFrames.decode(codec.createDecoder(), frame, 5)
+        assertEquals(1, decodedFrames.frames.size)
+        assertArrayEquals(payload, decodedFrames.frames[0])
+    }
+
+    @Test
+    fun decodesThePayloadsWithZeros() {
+        assertRoundTrip(byteArrayOf(0))
+        assertRoundTrip(byteArrayOf(0, 1, 0, 0, 2, 0))
+        assertRoundTrip(byteArrayOf(1, 2, 3))
+    }
+
+    @Test
+    fun decodesThePayloadsLongerThanABlock() {
+        assertRoundTrip(ByteArray(253) { 1 })
+        assertRoundTrip(ByteArray(254) { 1 })
+        assertRoundTrip(ByteArray(255) { 1 })
+        assertRoundTrip(ByteArray(600) { (it % 7).toByte() })
+    }
+
+    @Test
+    fun dropsTheMalformedFramesAndResynchronizes() {
+        // The frame of [1, 2, 3] is [4, 1, 2, 3, 0], it ends in the middle of its block without the 3
+        val corrupted = byteArrayOf(4, 1, 2, 0)
+        val decoder = codec.createDecoder()
+        val decodedFrames = DecodedFrames.decode(decoder, corrupted + DecodedFrames.encode(codec, "ok"))
+
+        assertEquals(listOf("ok"), decodedFrames.asStrings())
+        assertEquals(1L, decoder.droppedFrames)
+    }
+
+    @Test
+    fun dropsTheTooLongFrames() {
+        val smallCodec = CobsFrameCodec(4)
+        val decoder = smallCodec.createDecoder()
+        val decodedFrames = DecodedFrames.decode(decoder, DecodedFrames.encode(smallCodec, "0123456789", "ok"))
+
+        assertEquals(listOf("ok"), decodedFrames.asStrings())
+        assertEquals(1L, decoder.droppedFrames)
+    }
+}
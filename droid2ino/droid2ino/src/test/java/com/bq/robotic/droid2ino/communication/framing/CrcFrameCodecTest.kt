@@ -0,0 +1,78 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class CrcFrameCodecTest {
+    private val codec = CrcFrameCodec(64)
+
+    @Test
+    fun decodesTheEncodedFrames() {
+        val payload = ByteArray(64) { (it * 7).toByte() }
+        val stream = codec.encode(payload, 0, payload.size) + DecodedFrames.encode(codec, "", "ok")
+
+        val decodedFrames = DecodedFrames.decode(codec.createDecoder(), stream, 3)
+        assertEquals(3, decodedFrames.frames.size)
+        assertArrayEquals(payload, decodedFrames.frames[0])
+        assertEquals(listOf("", "ok"), decodedFrames.asStrings().drop(1))
+    }
+
+    @Test
+    fun encodesTheSameFrameInAPooledArray() {
+        val payload = "hello".toByteArray()
+        val destination = ByteArrayPool().acquire()
+        codec.encode(payload, 0, payload.size, destination)
+
+        assertArrayEquals(codec.encode(payload, 0, payload.size), destination.array.copyOf(destination.length))
+    }
+
+    @Test
+    fun dropsTheCorruptedFrameAndKeepsTheNextOne() {
+        val corrupted = DecodedFrames.encode(codec, "first")
+        corrupted[6] = (corrupted[6] + 1).toByte()
+        val decoder = codec.createDecoder()
+
+        val decodedFrames = DecodedFrames.decode(decoder, corrupted + DecodedFrames.encode(codec, "second"))
+        assertEquals(listOf("second"), decodedFrames.asStrings())
+        assertEquals(1L, decoder.droppedFrames)
+    }
+
+    @Test
+    fun skipsTheNoiseAndTheFalseSyncBytes() {
+        // Sync bytes followed by headers that don't match their CRC
+        val noise = byteArrayOf(1, 0xA5.toByte(), 0, 2, 0xA5.toByte(), 0xA5.toByte(), 9)
+
+        val decodedFrames = DecodedFrames.decode(codec.createDecoder(), noise + DecodedFrames.encode(codec, "ok"), 2)
+        assertEquals(listOf("ok"), decodedFrames.asStrings())
+    }
+
+    @Test
+    fun resynchronizesAfterALostByte() {
+        val truncated = DecodedFrames.encode(codec, "first").let { it.copyOfRange(0, 5) + it.copyOfRange(6, it.size) }
+
+        val decodedFrames = DecodedFrames.decode(codec.createDecoder(), truncated + DecodedFrames.encode(codec, "second", "third"))
+        assertEquals(listOf("second", "third"), decodedFrames.asStrings())
+    }
+}
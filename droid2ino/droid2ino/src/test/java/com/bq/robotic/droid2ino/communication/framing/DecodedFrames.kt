@@ -0,0 +1,56 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.framing
+
+/**
+ * Collects a copy of each decoded frame, as the decoders reuse the array given to the listener.
+ */
+class DecodedFrames : FrameDecoder.OnFrameDecodedListener {
+    val frames = mutableListOf<ByteArray>()
+
+    override fun onFrameDecoded(frame: ByteArray, offset: Int, length: Int) {
+        frames.add(frame.copyOfRange(offset, offset + length))
+    }
+
+    fun asStrings() = frames.map { String(it, Charsets.UTF_8) }
+
+    companion object {
+        /**
+         * Decode [data] with the given [decoder], giving it [chunkSize] bytes at a time.
+         */
+        fun decode(decoder: FrameDecoder, data: ByteArray, chunkSize: Int = data.size): DecodedFrames {
+            val decodedFrames = DecodedFrames()
+            var offset = 0
+            while (offset < data.size) {
+                val length = Math.min(chunkSize, data.size - offset)
+                decoder.decode(data, offset, length, decodedFrames)
+                offset += length
+            }
+            return decodedFrames
+        }
+
+        fun encode(codec: FrameCodec, vararg payloads: String) =
+            payloads.map { it.toByteArray(Charsets.UTF_8) }.fold(ByteArray(0)) { stream, payload ->
+                stream + codec.encode(payload, 0, payload.size)
+            }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class DelimiterFrameCodecTest {
+    private val codec = DelimiterFrameCodec("&&".toByteArray(), "%%".toByteArray(), 8, true)
+
+    @Test
+    fun decodesTheEncodedFrames() {
+        val stream = DecodedFrames.encode(codec, "hello", "", "world")
+
+        assertEquals(listOf("hello", "", "world"), DecodedFrames.decode(codec.createDecoder(), stream).asStrings())
+        assertEquals(listOf("hello", "", "world"), DecodedFrames.decode(codec.createDecoder(), stream, 1).asStrings())
+    }
+
+    @Test
+    fun discardsTheBytesOutsideOfTheFrames() {
+        val decodedFrames = DecodedFrames.decode(codec.createDecoder(), "noise&&a%%%x&&&b%%&".toByteArray())
+
+        assertEquals(listOf("a", "&b"), decodedFrames.asStrings())
+    }
+
+    @Test
+    fun dropsTheTooLongFramesAndResynchronizes() {
+        val decoder = codec.createDecoder()
+        val decodedFrames = DecodedFrames.decode(decoder, "&&0123456789%%&&ok%%".toByteArray(), 3)
+
+        assertEquals(listOf("ok"), decodedFrames.asStrings())
+        assertEquals(1L, decoder.droppedFrames)
+    }
+
+    @Test
+    fun encodesTheOutgoingPayloadAsItIsByDefault() {
+        val payload = "hello".toByteArray()
+
+        assertSame(payload, DelimiterFrameCodec.DEFAULT.encode(payload, 0, payload.size))
+        assertArrayEquals("ell".toByteArray(), DelimiterFrameCodec.DEFAULT.encode(payload, 1, 3))
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class JsonFrameCodecTest {
+    private val codec = JsonFrameCodec(16)
+
+    @Test
+    fun splitsTheConcatenatedValues() {
+        val stream = """{"a":"}"} [1,{"b":"\"]"}]""".toByteArray()
+
+        assertEquals(listOf("""{"a":"}"}""", """[1,{"b":"\"]"}]"""),
+            DecodedFrames.decode(codec.createDecoder(), stream, 1).asStrings())
+    }
+
+    @Test
+    fun completesTheBareValuesAtTheEndOfTheChunk() {
+        assertEquals(listOf("42"), DecodedFrames.decode(codec.createDecoder(), "42".toByteArray()).asStrings())
+    }
+
+    @Test
+    fun dropsTheTooLongValuesAndResynchronizes() {
+        val decoder = codec.createDecoder()
+        val decodedFrames = DecodedFrames.decode(decoder, """{"aaaaaaaaaaaaaaaa":1}{"b":2}""".toByteArray(), 4)
+
+        assertEquals(listOf("""{"b":2}"""), decodedFrames.asStrings())
+        assertEquals(1L, decoder.droppedFrames)
+    }
+
+    @Test
+    fun sendsTheOutgoingPayloadAsItIs() {
+        val destination = ByteArrayPool().acquire()
+        val payload = """{"a":1}""".toByteArray()
+        codec.encode(payload, 0, payload.size, destination)
+
+        assertEquals("""{"a":1}""", String(destination.array, 0, destination.length))
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class LengthPrefixedFrameCodecTest {
+    private val codec = LengthPrefixedFrameCodec(300)
+
+    @Test
+    fun decodesTheEncodedFrames() {
+        val payload = ByteArray(300) { it.toByte() }
+        val stream = codec.encode(payload, 0, payload.size) + DecodedFrames.encode(codec, "", "ok")
+
+        val decodedFrames = DecodedFrames.decode(codec.createDecoder(), stream, 1)
+        assertEquals(3, decodedFrames.frames.size)
+        assertArrayEquals(payload, decodedFrames.frames[0])
+        assertEquals(listOf("", "ok"), decodedFrames.asStrings().drop(1))
+    }
+
+    @Test
+    fun encodesTheSameFrameInAPooledArray() {
+        val payload = "hello".toByteArray()
+        val destination = ByteArrayPool().acquire()
+        codec.encode(payload, 1, 3, destination)
+
+        assertArrayEquals(byteArrayOf(0, 3) + "ell".toByteArray(), destination.array.copyOf(destination.length))
+    }
+
+    @Test
+    fun skipsTheTooLongFrames() {
+        val decoder = LengthPrefixedFrameCodec(4).createDecoder()
+        val stream = byteArrayOf(0, 10) + "0123456789".toByteArray() + byteArrayOf(0, 2) + "ok".toByteArray()
+
+        val decodedFrames = DecodedFrames.decode(decoder, stream, 3)
+        assertEquals(listOf("ok"), decodedFrames.asStrings())
+        assertEquals(1L, decoder.droppedFrames)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun rejectsTheTooLongPayloads() {
+        LengthPrefixedFrameCodec(4).encode(ByteArray(5), 0, 5)
+    }
+}
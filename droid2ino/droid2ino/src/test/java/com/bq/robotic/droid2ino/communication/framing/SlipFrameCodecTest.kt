@@ -0,0 +1,68 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.framing
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class SlipFrameCodecTest {
+    private val codec = SlipFrameCodec(8)
+
+    @Test
+    fun escapesTheEndAndEscBytes() {
+        val payload = byteArrayOf(1, 0xC0.toByte(), 2, 0xDB.toByte(), 3)
+        val frame = codec.encode(payload, 0, payload.size)
+
+        // Only the leading and the trailing END bytes are left
+        assertEquals(2, frame.count { it == 0xC0.toByte() })
+        val decodedFrames = DecodedFrames.decode(codec.createDecoder(), frame, 1)
+        assertEquals(1, decodedFrames.frames.size)
+        assertArrayEquals(payload, decodedFrames.frames[0])
+    }
+
+    @Test
+    fun ignoresTheEmptyFrames() {
+        val stream = byteArrayOf(0xC0.toByte(), 0xC0.toByte()) + DecodedFrames.encode(codec, "a")
+
+        assertEquals(listOf("a"), DecodedFrames.decode(codec.createDecoder(), stream).asStrings())
+    }
+
+    @Test
+    fun dropsTheTooLongFramesAndResynchronizes() {
+        val decoder = codec.createDecoder()
+        val decodedFrames = DecodedFrames.decode(decoder, DecodedFrames.encode(codec, "0123456789", "ok"))
+
+        assertEquals(listOf("ok"), decodedFrames.asStrings())
+        assertEquals(1L, decoder.droppedFrames)
+    }
+
+    @Test
+    fun decodesAnyByte() {
+        val payload = ByteArray(256) { it.toByte() }
+        val largeCodec = SlipFrameCodec(512)
+        val decodedFrames = DecodedFrames.decode(largeCodec.createDecoder(), largeCodec.encode(payload, 0, payload.size), 7)
+
+        assertEquals(1, decodedFrames.frames.size)
+        assertArrayEquals(payload, decodedFrames.frames[0])
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * This file is part of the Androidino
+ *
+ * Copyright (C) 2018 Mundo Reader S.L.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.bq.robotic.droid2ino.communication.reliable
+
+import com.bq.robotic.droid2ino.communication.BtFrameListener
+import com.bq.robotic.droid2ino.communication.SendHandle
+import com.bq.robotic.droid2ino.communication.SendPriority
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.nio.ByteBuffer
+
+class ReliableChannelTest {
+
+    /**
+     * Runs the timers of the channel when the test advances the time.
+     */
+    private class ManualScheduler : ReliableChannel.Scheduler {
+        private class Task(val runnable: Runnable, val dueMs: Long)
+
+        private val tasks = mutableListOf<Task>()
+        private var nowMs = 1000L
+
+        override fun uptimeMillis() = nowMs
+
+        override fun schedule(task: Runnable, delayMs: Long) {
+            tasks.add(Task(task, nowMs + delayMs))
+        }
+
+        override fun cancel(task: Runnable) {
+            tasks.removeAll { it.runnable === task }
+        }
+
+        override fun release() = tasks.clear()
+
+        fun advance(ms: Long) {
+            val targetMs = nowMs + ms
+            while (true) {
+                val task = tasks.filter { it.dueMs <= targetMs }.minBy { it.dueMs } ?: break
+                tasks.remove(task)
+                nowMs = task.dueMs
+                task.runnable.run()
+            }
+            nowMs = targetMs
+        }
+    }
+
+    /**
+     * Records the sent frames, which are sent right away.
+     */
+    private class RecordingFrameSender : ReliableChannel.FrameSender {
+        val frames = mutableListOf<String>()
+
+        override fun sendFrame(frame: ByteArray, length: Int, priority: SendPriority, coalesceKey: Any?): SendHandle {
+            frames.add(String(frame, 0, length, Charsets.UTF_8))
+            return SendHandle(null).apply { complete() }
+        }
+
+        fun takeFrames() = frames.toList().also { frames.clear() }
+    }
+
+    private class ReceivedMessages : BtFrameListener {
+        val messages = mutableListOf<String>()
+
+        override fun onFrameReceived(frame: ByteBuffer) {
+            val bytes = ByteArray(frame.remaining())
+            frame.duplicate().get(bytes)
+            messages.add(String(bytes, Charsets.UTF_8))
+        }
+    }
+
+    private val scheduler = ManualScheduler()
+    private val frameSender = RecordingFrameSender()
+    private val received = ReceivedMessages()
+    private val channel = ReliableChannel(frameSender, 4, 100L, 8, 20L, scheduler).also { it.listener = received }
+
+    private fun receive(frame: String) =
+        channel.onFrameReceived(ByteBuffer.wrap(frame.toByteArray(Charsets.UTF_8)).asReadOnlyBuffer())
+
+    @After
+    fun releaseChannel() = channel.release()
+
+    @Test
+    fun sendsSequencedFramesAndCompletesThemOnTheirAck() {
+        val first = channel.send("a")
+        val second = channel.send("b")
+        assertEquals(listOf("~d0:a", "~d1:b"), frameSender.takeFrames())
+        assertFalse(first.isDone)
+
+        receive("~a1")
+        assertTrue(first.isSuccess())
+        assertFalse(second.isDone)
+        assertEquals(1, channel.pendingMessages)
+
+        receive("~a2")
+        assertTrue(second.isSuccess())
+        assertEquals(0, channel.pendingMessages)
+    }
+
+    @Test
+    fun waitsForRoomInTheWindow() {
+        (1..5).forEach { channel.send("m$it") }
+        assertEquals(listOf("~d0:m1", "~d1:m2", "~d2:m3", "~d3:m4"), frameSender.takeFrames())
+
+        receive("~a1")
+        assertEquals(listOf("~d4:m5"), frameSender.takeFrames())
+    }
+
+    @Test
+    fun retransmitsTheMessagesNotAcknowledgedInTime() {
+        channel.send("a")
+        frameSender.takeFrames()
+
+        scheduler.advance(99)
+        assertEquals(emptyList<String>(), frameSender.takeFrames())
+        scheduler.advance(1)
+        assertEquals(listOf("~d0:a"), frameSender.takeFrames())
+        assertEquals(1L, channel.retransmissions)
+    }
+
+    @Test
+    fun selectiveAckRetransmitsOnlyTheLostMessage() {
+        val handles = listOf("a", "b", "c").map { channel.send(it) }
+        frameSender.takeFrames()
+        scheduler.advance(30)
+
+        // The first message was lost and the following ones arrived
+        receive("~a0:1,2")
+        assertEquals(listOf("~d0:a"), frameSender.takeFrames())
+        assertEquals(1L, channel.retransmissions)
+        assertFalse(handles[0].isDone)
+
+        // The selectively acknowledged messages aren't retransmitted by the timer
+        scheduler.advance(70)
+        assertEquals(emptyList<String>(), frameSender.takeFrames())
+
+        receive("~a3")
+        assertTrue(handles.all { it.isSuccess() })
+    }
+
+    @Test
+    fun deliversInOrderAndSuppressesDuplicates() {
+        receive("~d1:b")
+        assertEquals(emptyList<String>(), received.messages)
+        // The gap is reported right away
+        scheduler.advance(0)
+        assertEquals(listOf("~a0:1"), frameSender.takeFrames())
+
+        receive("~d0:a")
+        assertEquals(listOf("a", "b"), received.messages)
+        scheduler.advance(20)
+        assertEquals(listOf("~a2"), frameSender.takeFrames())
+
+        // The ack was lost, so the device sends the message again
+        receive("~d1:b")
+        assertEquals(listOf("a", "b"), received.messages)
+        scheduler.advance(0)
+        assertEquals(listOf("~a2"), frameSender.takeFrames())
+    }
+
+    @Test
+    fun delaysTheAckToCoverTheFollowingMessages() {
+        receive("~d0:a")
+        receive("~d1:b")
+        scheduler.advance(19)
+        assertEquals(emptyList<String>(), frameSender.takeFrames())
+        scheduler.advance(1)
+        assertEquals(listOf("~a2"), frameSender.takeFrames())
+    }
+
+    @Test
+    fun passesTheUnreliableMessagesThrough() {
+        receive("telemetry")
+        receive("~d0:a")
+        assertEquals(listOf("telemetry", "a"), received.messages)
+    }
+
+    @Test
+    fun resetFailsThePendingMessagesAndRestartsTheSequences() {
+        val pending = channel.send("a")
+        frameSender.takeFrames()
+
+        channel.reset()
+        assertTrue(pending.cause is IOException)
+        assertEquals(listOf("~r"), frameSender.takeFrames())
+        assertEquals(0, channel.pendingMessages)
+
+        channel.send("b")
+        assertEquals(listOf("~d0:b"), frameSender.takeFrames())
+    }
+
+    @Test
+    fun resetFromTheDeviceRestartsTheReceivedSequences() {
+        receive("~d0:x")
+        receive("~d2:z")
+        receive("~r")
+        receive("~d0:y")
+        assertEquals(listOf("x", "y"), received.messages)
+    }
+
+
+    @Test
+    fun sequenceDistanceWithoutWrapping() {
+        assertEquals(0, ReliableChannel.sequenceDistance(7, 7))
+        assertEquals(2, ReliableChannel.sequenceDistance(5, 3))
+        assertEquals(-2, ReliableChannel.sequenceDistance(3, 5))
+    }
+
+    @Test
+    fun sequenceDistanceAcrossTheWrap() {
+        assertEquals(1, ReliableChannel.sequenceDistance(0, 65535))
+        assertEquals(-1, ReliableChannel.sequenceDistance(65535, 0))
+        assertEquals(16, ReliableChannel.sequenceDistance(10, 65530))
+        assertEquals(-16, ReliableChannel.sequenceDistance(65530, 10))
+    }
+
+    @Test
+    fun sequenceDistanceIsSignedOverHalfTheSpace() {
+        assertEquals(32767, ReliableChannel.sequenceDistance(32767, 0))
+        assertEquals(-32768, ReliableChannel.sequenceDistance(32768, 0))
+        assertEquals(-32767, ReliableChannel.sequenceDistance(0, 32767))
+    }
+}